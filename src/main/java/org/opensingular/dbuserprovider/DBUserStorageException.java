@@ -2,6 +2,10 @@ package org.opensingular.dbuserprovider;
 
 public class DBUserStorageException extends RuntimeException {
 
+    public DBUserStorageException(String message) {
+        super(message);
+    }
+
     public DBUserStorageException(String message, Throwable cause) {
         super(message, cause);
     }
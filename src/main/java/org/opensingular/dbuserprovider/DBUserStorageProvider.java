@@ -13,17 +13,20 @@ import org.keycloak.storage.UserStorageProvider;
 import org.keycloak.storage.user.UserLookupProvider;
 import org.keycloak.storage.user.UserQueryProvider;
 import org.keycloak.storage.user.UserRegistrationProvider;
+import org.opensingular.dbuserprovider.model.AttributeSyncStats;
 import org.opensingular.dbuserprovider.model.QueryConfigurations;
 import org.opensingular.dbuserprovider.model.UserAdapter;
-import org.opensingular.dbuserprovider.persistence.DataSourceProvider;
 import org.opensingular.dbuserprovider.persistence.UserRepository;
 import org.opensingular.dbuserprovider.util.PagingUtil;
 
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @JBossLog
 public class DBUserStorageProvider implements UserStorageProvider,
@@ -33,18 +36,43 @@ public class DBUserStorageProvider implements UserStorageProvider,
     private final ComponentModel  model;
     private final UserRepository  repository;
     private final boolean allowDatabaseToOverwriteKeycloak;
+    private final boolean transientAttributes;
+    private final boolean lazyAttributes;
+    private final Set<String> lazyAttributeNames;
+    private final boolean fetchUserWithPasswordHash;
+    private final AttributeSyncStats attributeSyncStats;
+    // rows found during this session, so a login flow only hits the database once per user; a miss or a failed
+    // query is not kept, the next call asks the repository again
+    private final Map<String, Map<String, String>> usersById       = new HashMap<>();
+    private final Map<String, Map<String, String>> usersByUsername = new HashMap<>();
+    private final Map<String, Map<String, String>> usersByEmail    = new HashMap<>();
 
-    DBUserStorageProvider(KeycloakSession session, ComponentModel model, DataSourceProvider dataSourceProvider, QueryConfigurations queryConfigurations) {
+    DBUserStorageProvider(KeycloakSession session, ComponentModel model, UserRepository repository, QueryConfigurations queryConfigurations,
+                          AttributeSyncStats attributeSyncStats) {
         this.session    = session;
         this.model      = model;
-        this.repository = new UserRepository(dataSourceProvider, queryConfigurations);
+        this.repository = repository;
         this.allowDatabaseToOverwriteKeycloak = queryConfigurations.getAllowDatabaseToOverwriteKeycloak();
+        this.transientAttributes = queryConfigurations.getTransientAttributes();
+        this.lazyAttributes = queryConfigurations.hasFindAttributesById();
+        this.lazyAttributeNames = queryConfigurations.getLazyAttributeNames();
+        this.fetchUserWithPasswordHash = queryConfigurations.hasFindUserWithPasswordHash();
+        this.attributeSyncStats = attributeSyncStats;
     }
     
     
     private List<UserModel> toUserModel(RealmModel realm, List<Map<String, String>> users) {
-        return users.stream()
-                    .map(m -> new UserAdapter(session, realm, model, m, allowDatabaseToOverwriteKeycloak)).collect(Collectors.toList());
+        return toUserModel(realm, users.stream()).collect(Collectors.toList());
+    }
+    
+    private Stream<UserModel> toUserModel(RealmModel realm, Stream<Map<String, String>> users) {
+        return users.map(m -> toUserModel(realm, m));
+    }
+    
+    private UserModel toUserModel(RealmModel realm, Map<String, String> user) {
+        Supplier<Map<String, String>> attributesLoader = lazyAttributes ? () -> repository.findAttributesById(user.get("id")) : null;
+        return new UserAdapter(session, realm, model, user, allowDatabaseToOverwriteKeycloak, transientAttributes, attributesLoader,
+                               lazyAttributeNames, attributeSyncStats);
     }
     
     
@@ -68,10 +96,29 @@ public class DBUserStorageProvider implements UserStorageProvider,
         }
         
         UserCredentialModel cred = (UserCredentialModel) input;
+        // If the cache just got loaded in the last 500 millisec (i.e. probably part of the actual flow), there is no point in reloading the user.)
+        boolean reload = allowDatabaseToOverwriteKeycloak && user instanceof CachedUserModel && (System.currentTimeMillis() - ((CachedUserModel) user).getCacheTimestamp()) > 500;
+
+        if (fetchUserWithPasswordHash) {
+          // single round trip: the user row and its password hash come from the same query
+          String externalId = StorageId.externalId(user.getId());
+          Map<String, String> userWithHash = repository.findUserWithPasswordHash(externalId).orElse(null);
+          if (userWithHash == null) {
+            if (reload) {
+              ((CachedUserModel) user).invalidate();
+            }
+            return false;
+          }
+          if (reload) {
+            Map<String, String> dbRow = UserRepository.withoutPasswordHash(userWithHash);
+            usersById.put(externalId, dbRow);
+            invalidateIfChanged((CachedUserModel) user, toUserModel(realm, dbRow));
+          }
+          return repository.validateCredentials(userWithHash, cred.getChallengeResponse());
+        }
 
         UserModel dbUser = user;
-        // If the cache just got loaded in the last 500 millisec (i.e. probably part of the actual flow), there is no point in reloading the user.)
-        if (allowDatabaseToOverwriteKeycloak && user instanceof CachedUserModel && (System.currentTimeMillis() - ((CachedUserModel) user).getCacheTimestamp()) > 500) {
+        if (reload) {
           dbUser = this.getUserById(user.getId(), realm);
 
           if (dbUser == null) {
@@ -79,14 +126,18 @@ public class DBUserStorageProvider implements UserStorageProvider,
             return false;
           }
 
-          // For now, we'll just invalidate the cache if username or email has changed. Eventually we could check all (or a parametered list of) attributes fetched from the DB.
-          if (!java.util.Objects.equals(user.getUsername(), dbUser.getUsername()) || !java.util.Objects.equals(user.getEmail(), dbUser.getEmail())) {
-            ((CachedUserModel) user).invalidate();
-          }
+          invalidateIfChanged((CachedUserModel) user, dbUser);
         }
         return repository.validateCredentials(dbUser.getUsername(), cred.getChallengeResponse());
     }
     
+    private void invalidateIfChanged(CachedUserModel user, UserModel dbUser) {
+        // For now, we'll just invalidate the cache if username or email has changed. Eventually we could check all (or a parametered list of) attributes fetched from the DB.
+        if (!java.util.Objects.equals(user.getUsername(), dbUser.getUsername()) || !java.util.Objects.equals(user.getEmail(), dbUser.getEmail())) {
+          user.invalidate();
+        }
+    }
+    
     @Override
     public boolean updateCredential(RealmModel realm, UserModel user, CredentialInput input) {
         
@@ -138,13 +189,13 @@ public class DBUserStorageProvider implements UserStorageProvider,
         log.infov("lookup user by id: realm={0} userId={1}", realm.getId(), id);
         
         String externalId = StorageId.externalId(id);
-        Map<String, String> user = repository.findUserById(externalId);
+        Map<String, String> user = usersById.computeIfAbsent(externalId, k -> memoize(repository.findUserById(k), usersByUsername, "username"));
 
         if (user == null) {
             log.debugv("findUserById returned null, skipping creation of UserAdapter, expect login error");
             return null;
         } else {
-            return new UserAdapter(session, realm, model, user, allowDatabaseToOverwriteKeycloak);
+            return toUserModel(realm, user);
         }
     }
     
@@ -153,15 +204,27 @@ public class DBUserStorageProvider implements UserStorageProvider,
         
         log.infov("lookup user by username: realm={0} username={1}", realm.getId(), username);
         
-        return repository.findUserByUsername(username).map(u -> new UserAdapter(session, realm, model, u, allowDatabaseToOverwriteKeycloak)).orElse(null);
+        Map<String, String> user = usersByUsername.computeIfAbsent(username, k -> memoize(repository.findUserByUsername(k).orElse(null), usersById, "id"));
+        return user != null ? toUserModel(realm, user) : null;
+    }
+    
+    /**
+     * Also indexes a found row under its other key; returns null, which computeIfAbsent does not store, otherwise.
+     */
+    private Map<String, String> memoize(Map<String, String> user, Map<String, Map<String, String>> otherIndex, String otherKey) {
+        if (user != null) {
+            otherIndex.putIfAbsent(user.get(otherKey), user);
+        }
+        return user;
     }
     
     @Override
     public UserModel getUserByEmail(String email, RealmModel realm) {
         
-        log.infov("lookup user by username: realm={0} email={1}", realm.getId(), email);
+        log.infov("lookup user by email: realm={0} email={1}", realm.getId(), email);
         
-        return getUserByUsername(email, realm);
+        Map<String, String> user = usersByEmail.computeIfAbsent(email, k -> memoize(repository.findUserByEmail(k).orElse(null), usersById, "id"));
+        return user != null ? toUserModel(realm, user) : null;
     }
     
     @Override
@@ -205,6 +268,12 @@ public class DBUserStorageProvider implements UserStorageProvider,
         return internalSearchForUser(null, realm, null);
     }
     
+    @Override
+    public Stream<UserModel> getUsersStream(RealmModel realm) {
+        log.infov("stream users: realm={0}", realm.getId());
+        return toUserModel(realm, repository.streamUsers(null));
+    }
+    
     @Override
     public List<UserModel> getUsers(RealmModel realm, int firstResult, int maxResults) {
         
@@ -218,6 +287,12 @@ public class DBUserStorageProvider implements UserStorageProvider,
         return internalSearchForUser(search, realm, null);
     }
     
+    @Override
+    public Stream<UserModel> searchForUserStream(RealmModel realm, String search) {
+        log.infov("stream search for users: realm={0} search={1}", realm.getId(), search);
+        return toUserModel(realm, repository.streamUsers(search));
+    }
+    
     @Override
     public List<UserModel> searchForUser(String search, RealmModel realm, int firstResult, int maxResults) {
         log.infov("search for users: realm={0} search={1} firstResult={2} maxResults={3}", realm.getId(), search, firstResult, maxResults);
@@ -230,7 +305,17 @@ public class DBUserStorageProvider implements UserStorageProvider,
         return internalSearchForUser(params.values().stream().findFirst().orElse(null), realm, null);
     }
     
+    @Override
+    public Stream<UserModel> searchForUserStream(RealmModel realm, Map<String, String> params) {
+        log.infov("stream search for users with params: realm={0} params={1}", realm.getId(), params);
+        return toUserModel(realm, repository.streamUsers(params.values().stream().findFirst().orElse(null)));
+    }
+    
     private List<UserModel> internalSearchForUser(String search, RealmModel realm, PagingUtil.Pageable pageable) {
+        if (pageable == null) {
+            // every user, read a page at a time instead of one unbounded query
+            return toUserModel(realm, repository.streamUsers(search)).collect(Collectors.toList());
+        }
         return toUserModel(realm, repository.findUsers(search, pageable));
     }
     
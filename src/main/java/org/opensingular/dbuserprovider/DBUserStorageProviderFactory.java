@@ -2,6 +2,8 @@ package org.opensingular.dbuserprovider;
 
 import com.google.auto.service.AutoService;
 import lombok.extern.jbosslog.JBossLog;
+import org.apache.commons.lang3.StringUtils;
+import org.jboss.logging.Logger;
 import org.keycloak.Config;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.component.ComponentValidationException;
@@ -10,13 +12,33 @@ import org.keycloak.models.RealmModel;
 import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.provider.ProviderConfigurationBuilder;
 import org.keycloak.storage.UserStorageProviderFactory;
+import org.opensingular.dbuserprovider.model.AttributeSyncStats;
 import org.opensingular.dbuserprovider.model.QueryConfigurations;
+import org.opensingular.dbuserprovider.persistence.Bulkhead;
+import org.opensingular.dbuserprovider.persistence.CircuitBreaker;
 import org.opensingular.dbuserprovider.persistence.DataSourceProvider;
+import org.opensingular.dbuserprovider.persistence.QueryTimeouts;
+import org.opensingular.dbuserprovider.persistence.QueryType;
 import org.opensingular.dbuserprovider.persistence.RDBMS;
+import org.opensingular.dbuserprovider.persistence.ShardRouter;
+import org.opensingular.dbuserprovider.persistence.UserCache;
+import org.opensingular.dbuserprovider.persistence.UserCountCache;
+import org.opensingular.dbuserprovider.persistence.UserRepository;
+import org.opensingular.dbuserprovider.persistence.UserSearchIndex;
+import org.opensingular.dbuserprovider.persistence.UsernameFilter;
+import org.opensingular.dbuserprovider.util.DaemonThreadFactory;
+import org.opensingular.dbuserprovider.util.PasswordVerificationExecutor;
+import org.opensingular.dbuserprovider.util.PasswordVerifier;
+import org.opensingular.dbuserprovider.util.VerifiedCredentialCache;
 
+import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 @JBossLog
 @AutoService(UserStorageProviderFactory.class)
@@ -40,14 +62,14 @@ public class DBUserStorageProviderFactory implements UserStorageProviderFactory<
     @Override
     public void close() {
         for (Map.Entry<String, ProviderConfig> pc : providerConfigPerInstance.entrySet()) {
-            pc.getValue().dataSourceProvider.close();
+            pc.getValue().close();
         }
     }
     
     @Override
     public DBUserStorageProvider create(KeycloakSession session, ComponentModel model) {
         ProviderConfig providerConfig = providerConfigPerInstance.computeIfAbsent(model.getId(), s -> configure(model));
-        return new DBUserStorageProvider(session, model, providerConfig.dataSourceProvider, providerConfig.queryConfigurations);
+        return new DBUserStorageProvider(session, model, providerConfig.repository, providerConfig.queryConfigurations, providerConfig.attributeSyncStats);
     }
     
     private synchronized ProviderConfig configure(ComponentModel model) {
@@ -57,19 +79,99 @@ public class DBUserStorageProviderFactory implements UserStorageProviderFactory<
         String         password       = model.get("password");
         String         url            = model.get("url");
         RDBMS          rdbms          = RDBMS.getByDescription(model.get("rdbms"));
-        providerConfig.dataSourceProvider.configure(url, rdbms, user, password, model.getName());
+        Map<QueryType, Long> timeouts = new EnumMap<>(QueryType.class);
+        timeouts.put(QueryType.LOGIN_LOOKUP, model.get("queryTimeoutLoginLookup", 0L));
+        timeouts.put(QueryType.HASH_FETCH, model.get("queryTimeoutHashFetch", 0L));
+        timeouts.put(QueryType.SEARCH, model.get("queryTimeoutSearch", 0L));
+        timeouts.put(QueryType.COUNT, model.get("queryTimeoutCount", 0L));
+        timeouts.put(QueryType.LISTING, model.get("queryTimeoutListing", 0L));
+        QueryTimeouts queryTimeouts = new QueryTimeouts(timeouts);
+        providerConfig.dataSourceProvider.configure(url, model.get("replicaUrls"), model.get("replicaCooldown", 30L), queryTimeouts.getMaxTimeoutMillis(),
+                                                    rdbms, user, password, model.getName());
+        List<DataSourceProvider> shards = new ArrayList<>();
+        shards.add(providerConfig.dataSourceProvider);
+        int shardNumber = 1;
+        for (String shardUrl : StringUtils.split(model.get("shardUrls", ""), ',')) {
+            if (StringUtils.isNotBlank(shardUrl)) {
+                DataSourceProvider shard = new DataSourceProvider();
+                providerConfig.shardDataSourceProviders.add(shard);
+                shard.configure(shardUrl.trim(), null, 0, queryTimeouts.getMaxTimeoutMillis(), rdbms, user, password, model.getName() + "-shard-" + (++shardNumber));
+                shards.add(shard);
+            }
+        }
+        for (DataSourceProvider shard : shards) {
+            String shardName = model.getName() + (shards.size() > 1 ? "-shard-" + (shards.indexOf(shard) + 1) : "");
+            shard.setCircuitBreaker(new CircuitBreaker(
+                    shardName,
+                    model.get("circuitBreakerFailureRate", 0),
+                    model.get("circuitBreakerSlowCall", 5000L),
+                    model.get("circuitBreakerMinimumCalls", 20),
+                    model.get("circuitBreakerOpenDuration", 30L)
+            ));
+            shard.setBulkhead(new Bulkhead(
+                    shardName,
+                    shard.getReadPoolSize(),
+                    model.get("authReservedConnections", 0),
+                    model.get("adminQueueSize", 20),
+                    model.get("adminQueueTimeout", 10000L),
+                    shard.getConnectionTimeout()
+            ));
+        }
+        ShardRouter shardRouter = new ShardRouter(model.getName(), shards, ShardRouter.Rule.valueOf(model.get("shardRule", ShardRouter.Rule.PROBE.name())), model.get("shardIdPrefixes"));
         providerConfig.queryConfigurations = new QueryConfigurations(
                 model.get("count"),
                 model.get("listAll"),
                 model.get("findById"),
+                model.get("findByIds"),
                 model.get("findByUsername"),
+                model.get("findByEmail"),
                 model.get("findBySearchTerm"),
                 model.get("findPasswordHash"),
+                model.get("findUserWithPasswordHash"),
+                model.get("findAttributesById"),
+                model.get("lazyAttributeNames"),
                 model.get("hashFunction"),
+                model.get("seekColumn"),
+                model.get("fetchSize", 500),
+                model.get("pageWithTotalCount", false),
+                model.get("fullTextSearch", false),
                 rdbms,
                 model.get("allowKeycloakDelete", false),
-                model.get("allowDatabaseToOverwriteKeycloak", false)
+                model.get("allowDatabaseToOverwriteKeycloak", false),
+                model.get("transientAttributes", false)
+        );
+        UserCache userCache = new UserCache(
+                model.get("userCacheMaxSize", 0L),
+                model.get("userCacheTtl", 0L),
+                model.get("userCacheIdleTimeout", 0L),
+                model.get("userCacheNotFoundTtl", 10L),
+                model.get("staleUserTtl", 0L)
+        );
+        PasswordVerificationExecutor verificationExecutor = new PasswordVerificationExecutor(
+                model.getName(),
+                model.get("verifyThreads", 0),
+                model.get("verifyQueueSize", 100),
+                model.get("verifyTimeout", 5000L)
+        );
+        PasswordVerifier passwordVerifier = PasswordVerifier.forHashFunction(providerConfig.queryConfigurations.getHashFunction());
+        VerifiedCredentialCache verifiedCredentialCache = new VerifiedCredentialCache(
+                model.get("verifiedCredentialCacheMaxSize", 10000L),
+                model.get("verifiedCredentialCacheTtl", 0L)
         );
+        long countCacheStaleness = model.get("countCacheStaleness", 0L);
+        long pageTotalTtl = StringUtils.isBlank(model.get("pageTotalTtl")) ? countCacheStaleness : Long.parseLong(model.get("pageTotalTtl").trim());
+        UserCountCache userCountCache = new UserCountCache(model.getName(), countCacheStaleness, pageTotalTtl);
+        UserSearchIndex searchIndex = new UserSearchIndex(model.getName(), model.get("searchIndexColumns"), model.get("searchIndexRefresh", 600L));
+        UsernameFilter usernameFilter = new UsernameFilter(
+                model.getName(),
+                model.get("usernameFilter", false),
+                Double.parseDouble(model.get("usernameFilterFpp", "0.01")),
+                model.get("usernameFilterRefresh", 300L)
+        );
+        providerConfig.repository = new UserRepository(shardRouter, providerConfig.queryConfigurations, userCache,
+                                                       passwordVerifier, verificationExecutor, verifiedCredentialCache, userCountCache, searchIndex,
+                                                       model.get("batchWindow", 2L), model.get("batchSize", 100), usernameFilter, queryTimeouts);
+        providerConfig.startStatsLog(model.getName(), model.get("statsLogInterval", 300L));
         return providerConfig;
     }
     
@@ -78,7 +180,7 @@ public class DBUserStorageProviderFactory implements UserStorageProviderFactory<
         try {
             ProviderConfig old = providerConfigPerInstance.put(model.getId(), configure(model));
             if (old != null) {
-                old.dataSourceProvider.close();
+                old.close();
             }
         } catch (Exception e) {
             throw new ComponentValidationException(e.getMessage(), e);
@@ -116,6 +218,46 @@ public class DBUserStorageProviderFactory implements UserStorageProviderFactory<
                                            .defaultValue("password")
                                            .add()
                                            .property()
+                                           .name("replicaUrls")
+                                           .label("Read replica JDBC URLs (optional)")
+                                           .helpText("Optional comma separated JDBC connection strings of read replicas, using the same user and password. " +
+                                                     "User lookups, password hash fetches, searches and counts are spread across the replicas in turn and fall back to the main URL when no replica is reachable. " +
+                                                     "Mind the replication lag: a password changed on the primary is only accepted once replicated.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("")
+                                           .add()
+                                           .property()
+                                           .name("replicaCooldown")
+                                           .label("Replica cooldown (seconds)")
+                                           .helpText("A replica that fails to give a connection is left out for this long before being tried again.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("30")
+                                           .add()
+                                           .property()
+                                           .name("shardUrls")
+                                           .label("Additional shard JDBC URLs (optional)")
+                                           .helpText("Optional comma separated JDBC connection strings of other databases with the same schema and credentials, holding other users. " +
+                                                     "The JDBC URL above is the first shard. Lookups go to the shard chosen by the shard rule; listings, searches and counts run on every shard in parallel and are merged.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("")
+                                           .add()
+                                           .property()
+                                           .name("shardRule")
+                                           .label("Shard rule")
+                                           .helpText("How lookups by id find their shard: ID_PREFIX (the id starts with the prefix of its shard), HASH (hash of the id modulo the number of shards) " +
+                                                     "or PROBE (every shard in order, remembering where each user was found). Lookups by username and email always probe.")
+                                           .type(ProviderConfigProperty.LIST_TYPE)
+                                           .options(ShardRouter.Rule.getAllNames())
+                                           .defaultValue(ShardRouter.Rule.PROBE.name())
+                                           .add()
+                                           .property()
+                                           .name("shardIdPrefixes")
+                                           .label("Shard id prefixes")
+                                           .helpText("For the ID_PREFIX rule: comma separated id prefix of each shard, the first for the JDBC URL above, then one per additional shard URL.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("")
+                                           .add()
+                                           .property()
                                            .name("rdbms")
                                            .label("RDBMS")
                                            .helpText("Relational Database Management System")
@@ -138,6 +280,244 @@ public class DBUserStorageProviderFactory implements UserStorageProviderFactory<
                                            .type(ProviderConfigProperty.BOOLEAN_TYPE)
                                            .defaultValue("false")
                                            .add()
+                                           .property()
+                                           .name("transientAttributes")
+                                           .label("Read-only DB Attributes (never stored in Keycloak)")
+                                           .helpText("By default, every column returned by the queries is copied into Keycloak's federated attribute storage when a user is loaded. Activate this option when the database is the only source of truth: " +
+                                                     "columns are then served straight from the query result and never written to Keycloak's database. Attributes not returned by the queries still come from Keycloak. 'Allow DB Attributes to Overwrite Keycloak' has no effect in this mode.")
+                                           .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                                           .defaultValue("false")
+                                           .add()
+        
+                                           //USER CACHE
+        
+                                           .property()
+                                           .name("userCacheMaxSize")
+                                           .label("User cache max size")
+                                           .helpText("Maximum number of user lookups (by id or username) kept in memory and shared by all sessions of this provider. Use 0 to disable the cache.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("0")
+                                           .add()
+                                           .property()
+                                           .name("userCacheTtl")
+                                           .label("User cache TTL (seconds)")
+                                           .helpText("Time after which a cached user row is fetched again from the database; a deleted or renamed user keeps resolving that long. Use 0 to disable the cache.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("0")
+                                           .add()
+                                           .property()
+                                           .name("userCacheIdleTimeout")
+                                           .label("User cache idle timeout (seconds)")
+                                           .helpText("Time after which a cached entry that was not read is evicted. Use 0 to only expire entries by TTL.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("0")
+                                           .add()
+                                           .property()
+                                           .name("userCacheNotFoundTtl")
+                                           .label("User cache 'not found' TTL (seconds)")
+                                           .helpText("Time during which a lookup that found no user is answered from the cache, protecting the database from repeated logins with unknown usernames. Use 0 to disable negative caching.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("10")
+                                           .add()
+                                           .property()
+                                           .name("staleUserTtl")
+                                           .label("Stale user TTL (seconds)")
+                                           .helpText("When the database can not be queried, users looked up in the last this many seconds are served from memory instead of being reported as not found. Use 0 to disable.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("0")
+                                           .add()
+                                           .property()
+                                           .name("countCacheStaleness")
+                                           .label("User count staleness (seconds)")
+                                           .helpText("User counts (total and per search term) older than this are still returned immediately while they are recomputed in the background, so the admin console does not wait for full-table counts. Use 0 to count on every request.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("0")
+                                           .add()
+                                           .property()
+                                           .name("pageTotalTtl")
+                                           .label("Page total reuse (seconds)")
+                                           .helpText("With 'User count staleness' at 0, how long a total read along with a page (see 'Fetch user count with each page') answers the count request for the same search. Defaults to the user count staleness.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .add()
+                                           .property()
+                                           .name("pageWithTotalCount")
+                                           .label("Fetch user count with each page")
+                                           .helpText("Fetch the total number of users of a listing or search in the same statement as the page (count(*) over()), and answer the count request that follows from it instead of running a second count query. " +
+                                                     "Ignored for databases without window functions (MySQL 5.7).")
+                                           .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                                           .defaultValue("false")
+                                           .add()
+        
+                                           //SEARCH INDEX
+                                           .property()
+                                           .name("searchIndexColumns")
+                                           .label("In-memory search index columns")
+                                           .helpText("Comma separated columns of the list all query (e.g. username,email,firstName,lastName) kept in an in-memory substring index. " +
+                                                     "When set, user searches and search counts are answered from the index instead of the find by search term query. Leave empty to always search in the database.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("")
+                                           .add()
+                                           .property()
+                                           .name("searchIndexRefresh")
+                                           .label("Search index rebuild interval (seconds)")
+                                           .helpText("The index is rebuilt from the list all query at this interval; users read by id or username in between are updated right away. Use 0 to build it only once.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("600")
+                                           .add()
+        
+                                           //QUERY TIMEOUTS
+                                           .property()
+                                           .name("queryTimeoutLoginLookup")
+                                           .label("Login lookup timeout (milliseconds)")
+                                           .helpText("Time budget of user lookups by id, username or email, connection wait included; the statement is cancelled when it runs out. " +
+                                                     "Queries wait for one of the pooled connections no longer than their budget. Use 0 for no timeout.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("0")
+                                           .add()
+                                           .property()
+                                           .name("queryTimeoutHashFetch")
+                                           .label("Password hash fetch timeout (milliseconds)")
+                                           .helpText("Time budget of password hash queries, connection wait included. Use 0 for no timeout.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("0")
+                                           .add()
+                                           .property()
+                                           .name("queryTimeoutSearch")
+                                           .label("Search timeout (milliseconds)")
+                                           .helpText("Time budget of user search queries, connection wait included. Use 0 for no timeout.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("0")
+                                           .add()
+                                           .property()
+                                           .name("queryTimeoutCount")
+                                           .label("Count timeout (milliseconds)")
+                                           .helpText("Time budget of user count queries, connection wait included. Use 0 for no timeout.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("0")
+                                           .add()
+                                           .property()
+                                           .name("queryTimeoutListing")
+                                           .label("Listing timeout (milliseconds)")
+                                           .helpText("Time budget of user listing pages, connection wait included. Streamed exports and index builds are not bounded. Use 0 for no timeout.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("0")
+                                           .add()
+        
+                                           //CIRCUIT BREAKER
+                                           .property()
+                                           .name("circuitBreakerFailureRate")
+                                           .label("Circuit breaker failure rate (%)")
+                                           .helpText("When at least this share of the queries of a 10 second window fail or are slow, queries are rejected right away for the open duration, then let through one at a time until one succeeds. Login, search, count and listing queries share the breaker, so the slow query threshold must suit the slowest of them. Use 0 to disable.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("0")
+                                           .add()
+                                           .property()
+                                           .name("circuitBreakerSlowCall")
+                                           .label("Circuit breaker slow query (milliseconds)")
+                                           .helpText("Queries taking longer than this, connection wait included, count as failures.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("5000")
+                                           .add()
+                                           .property()
+                                           .name("circuitBreakerMinimumCalls")
+                                           .label("Circuit breaker minimum queries")
+                                           .helpText("Queries needed in a window before the failure rate is considered.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("20")
+                                           .add()
+                                           .property()
+                                           .name("circuitBreakerOpenDuration")
+                                           .label("Circuit breaker open duration (seconds)")
+                                           .helpText("How long queries are rejected once the breaker opens.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("30")
+                                           .add()
+        
+                                           //BULKHEAD
+                                           .property()
+                                           .name("authReservedConnections")
+                                           .label("Connections reserved for logins")
+                                           .helpText("Pool connections that user listings, searches and counts can never take, so a heavy admin console search does not starve logins. Admin queries beyond the remaining connections wait in a queue. Use 0 to disable.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("0")
+                                           .add()
+                                           .property()
+                                           .name("adminQueueSize")
+                                           .label("Admin query queue size")
+                                           .helpText("Admin queries that may wait for a connection at once; further ones are rejected right away.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("20")
+                                           .add()
+                                           .property()
+                                           .name("adminQueueTimeout")
+                                           .label("Admin query queue timeout (milliseconds)")
+                                           .helpText("How long an admin query waits for a connection before it is rejected.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("10000")
+                                           .add()
+        
+                                           //USERNAME FILTER
+                                           .property()
+                                           .name("usernameFilter")
+                                           .label("Username filter")
+                                           .helpText("Keep a Bloom filter of every username and email in memory, so logins with names that do not exist are rejected without a query. " +
+                                                     "Users inserted in the database by other applications can only log in after the next rebuild of the filter.")
+                                           .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                                           .defaultValue("false")
+                                           .add()
+                                           .property()
+                                           .name("usernameFilterFpp")
+                                           .label("Username filter false positive rate")
+                                           .helpText("Share of unknown names still sent to the database (e.g. 0.01). Lower rates use more memory: about 1.2 bytes per username or email at 0.01, 1.8 at 0.001; the size is logged on each build.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("0.01")
+                                           .add()
+                                           .property()
+                                           .name("usernameFilterRefresh")
+                                           .label("Username filter rebuild interval (seconds)")
+                                           .helpText("The filter is rebuilt from the list all query at this interval. Use 0 to build it only once.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("300")
+                                           .add()
+        
+                                           //PASSWORD VERIFICATION
+        
+                                           .property()
+                                           .name("verifyThreads")
+                                           .label("Password verification threads")
+                                           .helpText("Number of threads hashing passwords (bcrypt, PBKDF2, digests) for this provider. Use 0 to use one thread per available CPU.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("0")
+                                           .add()
+                                           .property()
+                                           .name("verifyQueueSize")
+                                           .label("Password verification queue size")
+                                           .helpText("Maximum number of password verifications waiting for a thread. Logins arriving while the queue is full are rejected immediately.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("100")
+                                           .add()
+                                           .property()
+                                           .name("verifyTimeout")
+                                           .label("Password verification timeout (ms)")
+                                           .helpText("Maximum time a login waits for its password verification, including time in the queue. Verifications taking longer are rejected.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("5000")
+                                           .add()
+                                           .property()
+                                           .name("verifiedCredentialCacheTtl")
+                                           .label("Verified credential cache TTL (seconds)")
+                                           .helpText("Opt-in. Time during which a successful password verification is remembered, so repeated logins of the same user with the same password skip the slow hash computation. " +
+                                                     "Entries are keyed by an HMAC of username, stored hash and password and stop matching as soon as the stored hash changes. Use 0 to disable.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("0")
+                                           .add()
+                                           .property()
+                                           .name("verifiedCredentialCacheMaxSize")
+                                           .label("Verified credential cache max size")
+                                           .helpText("Maximum number of remembered successful password verifications.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("10000")
+                                           .add()
         
                                            //QUERIES
         
@@ -177,6 +557,28 @@ public class DBUserStorageProviderFactory implements UserStorageProviderFactory<
                                                          "            \"fullName\" from users where \"id\" = ? ")
                                            .add()
         
+                                           .property()
+                                           .name("findByIds")
+                                           .label("Find users by ids SQL query (optional)")
+                                           .helpText("Optional. Same columns as the find user by id query, for several users at once: %s is replaced by one '?' per id (e.g. where \"id\" in (%s)). " +
+                                                     "When set, lookups by id arriving within the batch window are resolved together and concurrent lookups of the same id share one query.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("")
+                                           .add()
+                                           .property()
+                                           .name("batchWindow")
+                                           .label("Batch window (milliseconds)")
+                                           .helpText("How long the first lookup by id waits for others to join its batch while another batch is running; a lookup arriving alone runs at once.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("2")
+                                           .add()
+                                           .property()
+                                           .name("batchSize")
+                                           .label("Batch size")
+                                           .helpText("Maximum ids per find users by ids query; also capped by the parameter limit of the RDBMS.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("100")
+                                           .add()
                                            .property()
                                            .name("findByUsername")
                                            .label("Find user by username SQL query")
@@ -191,6 +593,31 @@ public class DBUserStorageProviderFactory implements UserStorageProviderFactory<
                                                          "            \"fullName\" from users where \"username\" = ? ")
                                            .add()
         
+                                           .property()
+                                           .name("findByEmail")
+                                           .label("Find user by email SQL query (optional)")
+                                           .helpText("Optional. Same columns as the find user by username query, filtered on the email column so email logins and duplicate email checks use its index. " +
+                                                     "When empty, emails are looked up with the find user by username query." + String.format(PARAMETER_HELP, "user email") + PARAMETER_PLACEHOLDER_HELP)
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("")
+                                           .add()
+                                           .property()
+                                           .name("findAttributesById")
+                                           .label("Find user attributes by id SQL query (optional)")
+                                           .helpText("Optional. When set, the user queries above only need to return the identity columns (\"id\", \"username\", \"email\") and this query, returning the other profile attributes, " +
+                                                     "runs the first time all attributes of the user are read (e.g. on the account page), keeping the login queries narrow." + String.format(PARAMETER_HELP, "user id") + PARAMETER_PLACEHOLDER_HELP)
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("")
+                                           .add()
+                                           .property()
+                                           .name("lazyAttributeNames")
+                                           .label("Lazy attribute names")
+                                           .helpText("Comma separated attributes returned by the find user attributes by id query. Reading one of them alone also runs the query; " +
+                                                     "reading any other attribute (e.g. 'locale') never does.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("")
+                                           .add()
+        
                                            .property()
                                            .name("findBySearchTerm")
                                            .label("Find user by search term SQL query")
@@ -204,7 +631,16 @@ public class DBUserStorageProviderFactory implements UserStorageProviderFactory<
                                                          "            \"cpf\"," +
                                                          "            \"fullName\" from users where upper(\"username\") like (?)  or upper(\"email\") like (?) or upper(\"fullName\") like (?)")
                                            .add()
-        
+                                           .property()
+                                           .name("fullTextSearch")
+                                           .label("Full-text search term")
+                                           .helpText("Bind the search term in the full-text syntax of the RDBMS, every word as a prefix, for a find by search term query written with the database full-text engine: " +
+                                                     "PostgreSQL to_tsvector(...) @@ to_tsquery(?) (term 'jo:* & sm:*'), MySQL MATCH(...) AGAINST(? IN BOOLEAN MODE) ('+jo* +sm*'), " +
+                                                     "SQL Server and DB2 CONTAINS(..., ?) ('\"jo*\" AND \"sm*\"'), Oracle Text CONTAINS(..., ?) > 0 ('jo% AND sm%'). " +
+                                                     "Leave off for LIKE queries, which receive the term as typed.")
+                                           .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                                           .defaultValue("false")
+                                           .add()
                                            .property()
                                            .name("findPasswordHash")
                                            .label("Find password hash (blowfish or hash digest hex) SQL query")
@@ -213,6 +649,14 @@ public class DBUserStorageProviderFactory implements UserStorageProviderFactory<
                                            .defaultValue("select hash_pwd from users where \"username\" = ? ")
                                            .add()
                                            .property()
+                                           .name("findUserWithPasswordHash")
+                                           .label("Find user with password hash SQL query (optional)")
+                                           .helpText("Optional. When set, password validation fetches the user and its password hash in a single query instead of running 'Find user by id' and 'Find password hash'. " +
+                                                     "Return the same columns as 'Find user by id' plus the password hash aliased as \"" + UserRepository.PASSWORD_HASH_COLUMN + "\"." + String.format(PARAMETER_HELP, "user id") + PARAMETER_PLACEHOLDER_HELP)
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("")
+                                           .add()
+                                           .property()
                                            .name("hashFunction")
                                            .label("Password hash function")
                                            .helpText("Hash type used to match passwrod (md* e sha* uses hex hash digest)")
@@ -220,12 +664,76 @@ public class DBUserStorageProviderFactory implements UserStorageProviderFactory<
                                            .options("Blowfish (bcrypt)", "MD2", "MD5", "SHA-1", "SHA-256", "SHA3-224", "SHA3-256", "SHA3-384", "SHA3-512", "SHA-384", "SHA-512/224", "SHA-512/256", "SHA-512", "PBKDF2-SHA256")
                                            .defaultValue("SHA-1")
                                            .add()
+                                           .property()
+                                           .name("seekColumn")
+                                           .label("Keyset pagination column (optional)")
+                                           .helpText("Optional. Unique, indexed column (e.g. \"id\") returned by the list and search queries. When set, paged listings are ordered by this column and a page following a previously read page " +
+                                                     "starts with 'where column > last key' instead of skipping rows with OFFSET, so deep pages cost an index seek.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("")
+                                           .add()
+                                           .property()
+                                           .name("statsLogInterval")
+                                           .label("Stats log interval (seconds)")
+                                           .helpText("Interval at which the cache, verification, timeout, circuit breaker, connection lane and attribute sync counters are logged at DEBUG level; " +
+                                                     "they are always logged at INFO level when the provider is closed. Use 0 to only log them on close.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("300")
+                                           .add()
+                                           .property()
+                                           .name("fetchSize")
+                                           .label("JDBC fetch size")
+                                           .helpText("Number of rows read per query when all users are listed or exported without paging; each page is a separate query, so set a seek column for large tables. " +
+                                                     "The background index builds stream all users with this JDBC fetch size.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("500")
+                                           .add()
                                            .build();
     }
     
     private static class ProviderConfig {
-        private DataSourceProvider  dataSourceProvider = new DataSourceProvider();
+        private DataSourceProvider       dataSourceProvider       = new DataSourceProvider();
+        private List<DataSourceProvider> shardDataSourceProviders = new ArrayList<>();
         private QueryConfigurations queryConfigurations;
+        private UserRepository      repository;
+        private AttributeSyncStats  attributeSyncStats = new AttributeSyncStats();
+        private ScheduledExecutorService statsExecutor;
+        
+        private void startStatsLog(String name, long intervalSeconds) {
+            if (intervalSeconds > 0) {
+                statsExecutor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory(name, "stats"));
+                statsExecutor.scheduleWithFixedDelay(() -> logStats(Logger.Level.DEBUG), intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+            }
+        }
+        
+        private void logStats(Logger.Level level) {
+            if (repository == null || !log.isEnabled(level)) {
+                return;
+            }
+            if (repository.getUserCache().isEnabled()) {
+                log.logv(level, "User cache stats: found={0} notFound={1}", repository.getUserCache().getStats(), repository.getUserCache().getNotFoundStats());
+            }
+            log.logv(level, "Password verification stats: {0}", repository.getVerificationExecutor());
+            log.logv(level, "Username filter stats: {0}", repository.getUsernameFilter());
+            log.logv(level, "Query timeout stats: {0}", repository.getQueryTimeouts());
+            log.logv(level, "Circuit breaker stats: {0}", dataSourceProvider.getCircuitBreaker());
+            shardDataSourceProviders.forEach(s -> log.logv(level, "Circuit breaker stats: {0}", s.getCircuitBreaker()));
+            log.logv(level, "Connection lane stats: {0}", dataSourceProvider.getBulkhead());
+            shardDataSourceProviders.forEach(s -> log.logv(level, "Connection lane stats: {0}", s.getBulkhead()));
+            log.logv(level, "Federated attribute sync stats: {0}", attributeSyncStats);
+        }
+        
+        private void close() {
+            if (statsExecutor != null) {
+                statsExecutor.shutdownNow();
+            }
+            logStats(Logger.Level.INFO);
+            if (repository != null) {
+                repository.close();
+            }
+            dataSourceProvider.close();
+            shardDataSourceProviders.forEach(DataSourceProvider::close);
+        }
     }
     
     
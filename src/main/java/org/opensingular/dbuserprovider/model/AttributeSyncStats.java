@@ -0,0 +1,31 @@
+package org.opensingular.dbuserprovider.model;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the attributes {@link UserAdapter} wrote to the federated storage and those it skipped as unchanged, for
+ * one provider component.
+ */
+public class AttributeSyncStats {
+
+    private final LongAdder applied = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+
+    void record(int appliedWrites, int skippedWrites) {
+        applied.add(appliedWrites);
+        skipped.add(skippedWrites);
+    }
+
+    public long getApplied() {
+        return applied.sum();
+    }
+
+    public long getSkipped() {
+        return skipped.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AttributeSyncStats{applied=%d, skipped=%d}", getApplied(), getSkipped());
+    }
+}
@@ -1,31 +1,60 @@
 package org.opensingular.dbuserprovider.model;
 
+import org.apache.commons.lang3.StringUtils;
 import org.opensingular.dbuserprovider.persistence.RDBMS;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.stream.Collectors;
+
 public class QueryConfigurations {
 
     private String count;
     private String listAll;
     private String findById;
+    private String findByIds;
     private String findByUsername;
+    private String findByEmail;
     private String findBySearchTerm;
     private String findPasswordHash;
+    private String findUserWithPasswordHash;
+    private String findAttributesById;
+    private Set<String> lazyAttributeNames;
     private String hashFunction;
+    private String seekColumn;
+    private int    fetchSize;
+    private boolean pageWithTotalCount;
+    private boolean fullTextSearch;
     private RDBMS  RDBMS;
     private boolean allowKeycloakDelete;
     private boolean allowDatabaseToOverwriteKeycloak;
+    private boolean transientAttributes;
 
-    public QueryConfigurations(String count, String listAll, String findById, String findByUsername, String findBySearchTerm, String findPasswordHash, String hashFunction, RDBMS RDBMS, boolean allowKeycloakDelete, boolean allowDatabaseToOverwriteKeycloak) {
+    public QueryConfigurations(String count, String listAll, String findById, String findByIds, String findByUsername, String findByEmail, String findBySearchTerm, String findPasswordHash, String findUserWithPasswordHash, String findAttributesById, String lazyAttributeNames, String hashFunction, String seekColumn, int fetchSize, boolean pageWithTotalCount, boolean fullTextSearch, RDBMS RDBMS, boolean allowKeycloakDelete, boolean allowDatabaseToOverwriteKeycloak, boolean transientAttributes) {
         this.count = count;
         this.listAll = listAll;
         this.findById = findById;
+        this.findByIds = findByIds;
         this.findByUsername = findByUsername;
+        this.findByEmail = findByEmail;
         this.findBySearchTerm = findBySearchTerm;
         this.findPasswordHash = findPasswordHash;
+        this.findUserWithPasswordHash = findUserWithPasswordHash;
+        this.findAttributesById = findAttributesById;
+        this.lazyAttributeNames = Arrays.stream(StringUtils.defaultString(lazyAttributeNames).split(","))
+                                        .map(String::trim)
+                                        .filter(StringUtils::isNotEmpty)
+                                        .collect(Collectors.toSet());
         this.hashFunction = hashFunction;
+        this.seekColumn = StringUtils.trimToNull(seekColumn);
+        this.fetchSize = fetchSize;
+        this.pageWithTotalCount = pageWithTotalCount;
+        this.fullTextSearch = fullTextSearch;
         this.RDBMS = RDBMS;
         this.allowKeycloakDelete = allowKeycloakDelete;
         this.allowDatabaseToOverwriteKeycloak = allowDatabaseToOverwriteKeycloak;
+        this.transientAttributes = transientAttributes;
     }
 
     public RDBMS getRDBMS() {
@@ -44,10 +73,29 @@ public class QueryConfigurations {
         return findById;
     }
 
+    /**
+     * @param ids number of ids, one '?' each in place of the template %s
+     */
+    public String getFindByIds(int ids) {
+        return String.format(findByIds, String.join(",", Collections.nCopies(ids, "?")));
+    }
+
+    public boolean hasFindByIds() {
+        return StringUtils.isNotBlank(findByIds);
+    }
+
     public String getFindByUsername() {
         return findByUsername;
     }
 
+    public String getFindByEmail() {
+        return findByEmail;
+    }
+
+    public boolean hasFindByEmail() {
+        return StringUtils.isNotBlank(findByEmail);
+    }
+
     public String getFindBySearchTerm() {
         return findBySearchTerm;
     }
@@ -56,12 +104,64 @@ public class QueryConfigurations {
         return findPasswordHash;
     }
 
+    public String getFindUserWithPasswordHash() {
+        return findUserWithPasswordHash;
+    }
+
+    public boolean hasFindUserWithPasswordHash() {
+        return StringUtils.isNotBlank(findUserWithPasswordHash);
+    }
+
+    public String getFindAttributesById() {
+        return findAttributesById;
+    }
+
+    public boolean hasFindAttributesById() {
+        return StringUtils.isNotBlank(findAttributesById);
+    }
+
+    /**
+     * Attributes returned by the find attributes by id query whose single reads run it.
+     */
+    public Set<String> getLazyAttributeNames() {
+        return lazyAttributeNames;
+    }
+
     public String getHashFunction() {
         return hashFunction;
     }
 
-    public boolean isBlowfish() {
-        return hashFunction.toLowerCase().contains("blowfish");
+    public String getSeekColumn() {
+        return seekColumn;
+    }
+
+    public boolean hasSeekColumn() {
+        return seekColumn != null;
+    }
+
+    /**
+     * Seek column without identifier quotes, as returned in the result set labels.
+     */
+    public String getSeekColumnLabel() {
+        return seekColumn == null ? null : StringUtils.strip(seekColumn, "\"`[]");
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    /**
+     * Whether pages are fetched with the total count of the listing in the same statement.
+     */
+    public boolean isPageWithTotalCount() {
+        return pageWithTotalCount && RDBMS != null && RDBMS.supportsWindowCount();
+    }
+
+    /**
+     * Whether the search query uses the database full-text engine, the term being bound in its syntax.
+     */
+    public boolean isFullTextSearch() {
+        return fullTextSearch && RDBMS != null;
     }
 
     public boolean getAllowKeycloakDelete() {
@@ -71,4 +171,8 @@ public class QueryConfigurations {
     public boolean getAllowDatabaseToOverwriteKeycloak() {
         return allowDatabaseToOverwriteKeycloak;
     }
+
+    public boolean getTransientAttributes() {
+        return transientAttributes;
+    }
 }
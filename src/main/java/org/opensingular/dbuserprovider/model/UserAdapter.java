@@ -2,48 +2,163 @@ package org.opensingular.dbuserprovider.model;
 
 import lombok.extern.jbosslog.JBossLog;
 import org.apache.commons.lang3.StringUtils;
+import org.keycloak.common.util.MultivaluedHashMap;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.storage.StorageId;
 import org.keycloak.storage.adapter.AbstractUserAdapterFederatedStorage;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Set;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 @JBossLog
 public class UserAdapter extends AbstractUserAdapterFederatedStorage {
 
-    private final String keycloakId;
-    private       String username;
+    private final String                        keycloakId;
+    private       String                        username;
+    private final boolean                       allowDatabaseToOverwriteKeycloak;
+    // transient mode: DB columns are served from this row and never written to the federated storage
+    private final Map<String, String>           transientData;
+    // attributes of the attributes query whose single reads run it
+    private final Set<String>                   lazyAttributeNames;
+    private final Supplier<Map<String, String>> attributesLoader;
+    private       Map<String, String>           lazyData;
+    private final AttributeSyncStats            syncStats;
 
-    public UserAdapter(KeycloakSession session, RealmModel realm, ComponentModel model, Map<String, String> data, boolean allowDatabaseToOverwriteKeycloak) {
+    /**
+     * @param attributesLoader   when not null, loads the attributes not returned by the identity query on their first access
+     * @param lazyAttributeNames attributes whose single reads run the loader; reading all attributes always does
+     * @param syncStats          counts the federated attribute writes of the provider component
+     */
+    public UserAdapter(KeycloakSession session, RealmModel realm, ComponentModel model, Map<String, String> data, boolean allowDatabaseToOverwriteKeycloak, boolean transientAttributes,
+                       Supplier<Map<String, String>> attributesLoader, Set<String> lazyAttributeNames, AttributeSyncStats syncStats) {
         super(session, realm, model);
+        this.syncStats = syncStats;
         this.keycloakId = StorageId.keycloakId(model, data.get("id"));
         this.username = data.get("username");
+        this.allowDatabaseToOverwriteKeycloak = allowDatabaseToOverwriteKeycloak;
+        this.transientData = transientAttributes ? data : null;
+        this.lazyAttributeNames = lazyAttributeNames;
+        this.attributesLoader = attributesLoader;
+        if (transientAttributes) {
+            return;
+        }
         try {
-          Map<String, List<String>> attributes = this.getAttributes();
-          for (Entry<String, String> e : data.entrySet()) {
-              Set<String>  newValues = new HashSet<>();
-              if (!allowDatabaseToOverwriteKeycloak) {
-                List<String> attribute = attributes.get(e.getKey());
-                if (attribute != null) {
-                    newValues.addAll(attribute);
-                }
-              }
-              newValues.add(StringUtils.trimToNull(e.getValue()));
-              this.setAttribute(e.getKey(), newValues.stream().filter(Objects::nonNull).collect(Collectors.toList()));
-          }
+          syncAttributes(data, allowDatabaseToOverwriteKeycloak);
         } catch(Exception e) {
           log.errorv(e, "UserAdapter constructor, username={0}", this.username);
         }
     }
 
+    /**
+     * Runs the attributes query once, the first time all attributes or one of the lazy attributes are read.
+     *
+     * @param name the attribute being read, or null when all attributes are read
+     */
+    private void loadAttributes(String name) {
+        if (attributesLoader == null || lazyData != null || (name != null && !lazyAttributeNames.contains(name))) {
+            return;
+        }
+        lazyData = attributesLoader.get();
+        if (transientData == null) {
+            try {
+              syncAttributes(lazyData, allowDatabaseToOverwriteKeycloak);
+            } catch(Exception e) {
+              log.errorv(e, "UserAdapter lazy attributes, username={0}", this.username);
+            }
+        }
+    }
+
+    private Map<String, String> transientSource(String name) {
+        if (transientData == null) {
+            return null;
+        }
+        if (transientData.containsKey(name)) {
+            return transientData;
+        }
+        return lazyData != null && lazyData.containsKey(name) ? lazyData : null;
+    }
+
+    /**
+     * Writes to the federated storage only the attributes whose values differ from the stored ones.
+     */
+    private void syncAttributes(Map<String, String> data, boolean allowDatabaseToOverwriteKeycloak) {
+        Map<String, List<String>> attributes = super.getAttributes();
+        Map<String, List<String>> changes    = new LinkedHashMap<>();
+        for (Entry<String, String> e : data.entrySet()) {
+            Set<String>  currentValues = nonNullValues(attributes.get(e.getKey()));
+            Set<String>  newValues     = new HashSet<>();
+            if (!allowDatabaseToOverwriteKeycloak) {
+                newValues.addAll(currentValues);
+            }
+            String value = StringUtils.trimToNull(e.getValue());
+            if (value != null) {
+                newValues.add(value);
+            }
+            if (!newValues.equals(currentValues)) {
+                changes.put(e.getKey(), new ArrayList<>(newValues));
+            }
+        }
+        // the federated storage SPI has no bulk write, the changed attributes are written one after the other
+        changes.forEach(this::setAttribute);
+        syncStats.record(changes.size(), data.size() - changes.size());
+        if (!changes.isEmpty()) {
+            log.debugv("synced federated attributes: username={0} changed={1}", this.username, changes.keySet());
+        }
+    }
+
+    private static Set<String> nonNullValues(List<String> values) {
+        return values == null ? new HashSet<>() : values.stream().filter(Objects::nonNull).collect(Collectors.toSet());
+    }
+
+
+    @Override
+    public String getFirstAttribute(String name) {
+        loadAttributes(name);
+        Map<String, String> source = transientSource(name);
+        if (source != null) {
+            return StringUtils.trimToNull(source.get(name));
+        }
+        return super.getFirstAttribute(name);
+    }
+
+    @Override
+    public List<String> getAttribute(String name) {
+        loadAttributes(name);
+        Map<String, String> source = transientSource(name);
+        if (source != null) {
+            String value = StringUtils.trimToNull(source.get(name));
+            return value == null ? Collections.emptyList() : Collections.singletonList(value);
+        }
+        return super.getAttribute(name);
+    }
+
+    @Override
+    public Map<String, List<String>> getAttributes() {
+        loadAttributes(null);
+        Map<String, List<String>> attributes = super.getAttributes();
+        if (transientData != null) {
+            attributes = new MultivaluedHashMap<>(attributes);
+            Set<String> names = new HashSet<>(transientData.keySet());
+            if (lazyData != null) {
+                names.addAll(lazyData.keySet());
+            }
+            for (String name : names) {
+                attributes.put(name, getAttribute(name));
+            }
+        }
+        return attributes;
+    }
 
     @Override
     public String getId() {
@@ -0,0 +1,159 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import lombok.extern.jbosslog.JBossLog;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Hands out the connections of a pool as permits, so the wait for a connection ends with the query budget, and keeps
+ * {@code authReserved} of them for the login path: the {@link Lane#ADMIN} lane holds at most
+ * {@code poolSize - authReserved} at once, further admin queries wait in a bounded queue.
+ */
+@JBossLog
+public class Bulkhead {
+
+    public enum Lane {
+        /** lookups and password hash fetches on the login path */
+        AUTH,
+        /** listings, searches and counts */
+        ADMIN
+    }
+
+    private final String               name;
+    private final Map<Lane, LaneState> lanes = new EnumMap<>(Lane.class);
+    // one permit per pooled connection, null when the data source alone bounds the wait
+    private final Semaphore            connections;
+    private final long                 connectionWaitMillis;
+
+    private static class LaneState {
+        // null when the lane is not throttled
+        private final Semaphore permits;
+        private final int       maxQueue;
+        private final long      maxWaitMillis;
+        private final LongAdder acquired = new LongAdder();
+        private final LongAdder queued   = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+
+        private LaneState(Semaphore permits, int maxQueue, long maxWaitMillis) {
+            this.permits = permits;
+            this.maxQueue = maxQueue;
+            this.maxWaitMillis = maxWaitMillis;
+        }
+    }
+
+    /**
+     * A connection of a lane, given back on close.
+     */
+    public static class Permit implements AutoCloseable {
+        private final Semaphore     lane;
+        private final Semaphore     connections;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(Semaphore lane, Semaphore connections) {
+            this.lane = lane;
+            this.connections = connections;
+        }
+
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) {
+                if (connections != null) {
+                    connections.release();
+                }
+                if (lane != null) {
+                    lane.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param authReserved         connections kept for the login path; 0 disables throttling
+     * @param connectionWaitMillis longest wait for a connection of a query without budget; 0 leaves waiting for
+     *                             connections to the data source
+     */
+    public Bulkhead(String name, int poolSize, int authReserved, int adminQueueSize, long adminQueueTimeoutMillis, long connectionWaitMillis) {
+        this.name = name;
+        Semaphore adminPermits = authReserved > 0 ? new Semaphore(Math.max(poolSize - authReserved, 1), true) : null;
+        lanes.put(Lane.AUTH, new LaneState(null, 0, 0));
+        lanes.put(Lane.ADMIN, new LaneState(adminPermits, Math.max(adminQueueSize, 0), Math.max(adminQueueTimeoutMillis, 0)));
+        this.connections = poolSize > 0 && connectionWaitMillis > 0 ? new Semaphore(poolSize, true) : null;
+        this.connectionWaitMillis = connectionWaitMillis;
+    }
+
+    public static Bulkhead unlimited() {
+        return new Bulkhead(null, 0, 0, 0, 0, 0);
+    }
+
+    /**
+     * @param deadline deadline of the query in {@link System#nanoTime()} terms, 0 when unbounded
+     * @return the permit, to close once the connection is given back, or null when the query is rejected
+     */
+    public Permit acquire(Lane lane, long deadline) {
+        LaneState state = lanes.get(lane);
+        if (!acquireLane(lane, state, deadline)) {
+            return null;
+        }
+        if (connections == null) {
+            return new Permit(state.permits, null);
+        }
+        long waitNanos = deadline != 0 ? deadline - System.nanoTime() : TimeUnit.MILLISECONDS.toNanos(connectionWaitMillis);
+        try {
+            if (connections.tryAcquire() || (waitNanos > 0 && connections.tryAcquire(waitNanos, TimeUnit.NANOSECONDS))) {
+                return new Permit(state.permits, connections);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (state.permits != null) {
+            state.permits.release();
+        }
+        state.rejected.increment();
+        log.warnv("Query rejected, no {0} connection freed within its budget: {1}", lane, name);
+        return null;
+    }
+
+    private boolean acquireLane(Lane lane, LaneState state, long deadline) {
+        if (state.permits == null || state.permits.tryAcquire()) {
+            state.acquired.increment();
+            return true;
+        }
+        if (state.permits.getQueueLength() >= state.maxQueue) {
+            return reject(lane, state);
+        }
+        state.queued.increment();
+        long waitNanos = TimeUnit.MILLISECONDS.toNanos(state.maxWaitMillis);
+        if (deadline != 0) {
+            waitNanos = Math.min(waitNanos, deadline - System.nanoTime());
+        }
+        try {
+            if (waitNanos > 0 && state.permits.tryAcquire(waitNanos, TimeUnit.NANOSECONDS)) {
+                state.acquired.increment();
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return reject(lane, state);
+    }
+
+    private boolean reject(Lane lane, LaneState state) {
+        state.rejected.increment();
+        log.warnv("Query rejected, {0} connection lane is full: {1} queueDepth={2}", lane, name, state.permits.getQueueLength());
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "Bulkhead" + lanes.entrySet().stream()
+                                 .map(e -> String.format("%s={acquired=%d, queued=%d, rejected=%d}", e.getKey(),
+                                                         e.getValue().acquired.sum(), e.getValue().queued.sum(), e.getValue().rejected.sum()))
+                                 .collect(Collectors.joining(", ", "{name=" + name + ", ", "}"));
+    }
+}
@@ -0,0 +1,137 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import lombok.extern.jbosslog.JBossLog;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Rejects queries for {@code openMillis} once the failed or slow calls of a 10 second window reach
+ * {@code failureRatePercent}, then lets a single probe decide whether to close again.
+ */
+@JBossLog
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /** returned by {@link #tryAcquire()} when the call is rejected */
+    public static final long REJECTED = -1;
+
+    private static final long WINDOW_MILLIS = 10_000;
+
+    private final String    name;
+    private final boolean   enabled;
+    private final int       failureRatePercent;
+    private final long      slowCallNanos;
+    private final int       minimumCalls;
+    private final long      openMillis;
+    private final LongAdder rejected = new LongAdder();
+    private       State     state    = State.CLOSED;
+    private       long      windowStart;
+    private       int       calls;
+    private       int       failures;
+    private       long      openUntil;
+    private       boolean   probing;
+    private       long      generation;
+
+    /**
+     * @param failureRatePercent share of failed or slow calls that opens the breaker; 0 disables it
+     */
+    public CircuitBreaker(String name, int failureRatePercent, long slowCallMillis, int minimumCalls, long openSeconds) {
+        this.name = name;
+        this.enabled = failureRatePercent > 0;
+        this.failureRatePercent = failureRatePercent;
+        this.slowCallNanos = slowCallMillis > 0 ? slowCallMillis * 1_000_000 : Long.MAX_VALUE;
+        this.minimumCalls = Math.max(minimumCalls, 1);
+        this.openMillis = openSeconds * 1000;
+    }
+
+    public static CircuitBreaker disabled() {
+        return new CircuitBreaker(null, 0, 0, 0, 0);
+    }
+
+    /**
+     * @return {@link #REJECTED}, or the call to pass to {@link #record}, which must follow every permitted call
+     */
+    public synchronized long tryAcquire() {
+        if (!enabled) {
+            return generation;
+        }
+        long now = System.currentTimeMillis();
+        if (state == State.OPEN && now >= openUntil) {
+            state = State.HALF_OPEN;
+            probing = false;
+            generation++;
+        }
+        if (state == State.OPEN || (state == State.HALF_OPEN && probing)) {
+            rejected.increment();
+            return REJECTED;
+        }
+        if (state == State.HALF_OPEN) {
+            probing = true;
+        }
+        return generation;
+    }
+
+    public synchronized void record(long call, boolean success, long elapsedNanos) {
+        // calls started before the last state change are ignored; half open, that leaves only the probe
+        if (!enabled || call != generation) {
+            return;
+        }
+        boolean failed = !success || elapsedNanos >= slowCallNanos;
+        long    now    = System.currentTimeMillis();
+        if (state == State.HALF_OPEN) {
+            probing = false;
+            if (failed) {
+                open(now);
+            } else {
+                log.infov("Circuit breaker closed: {0}", name);
+                state = State.CLOSED;
+                generation++;
+                resetWindow(now);
+            }
+            return;
+        }
+        if (state == State.OPEN) {
+            return;
+        }
+        if (now - windowStart >= WINDOW_MILLIS) {
+            resetWindow(now);
+        }
+        calls++;
+        if (failed) {
+            failures++;
+        }
+        if (calls >= minimumCalls && failures * 100 >= failureRatePercent * calls) {
+            open(now);
+        }
+    }
+
+    private void open(long now) {
+        log.warnv("Circuit breaker open for {0}ms: {1} failures={2}/{3}", openMillis, name, failures, calls);
+        state = State.OPEN;
+        openUntil = now + openMillis;
+        generation++;
+        resetWindow(now);
+    }
+
+    private void resetWindow(long now) {
+        windowStart = now;
+        calls = 0;
+        failures = 0;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CircuitBreaker{name=%s, state=%s, rejected=%d}", name, getState(), getRejectedCount());
+    }
+}
@@ -8,18 +8,42 @@ import org.apache.commons.lang3.StringUtils;
 
 import javax.sql.DataSource;
 import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.SQLException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 @JBossLog
 public class DataSourceProvider implements Closeable {
     
-    private static final SimpleDateFormat SIMPLE_DATE_FORMAT = new SimpleDateFormat("dd-MM-YYYY HH:mm:ss");
-    private              ExecutorService  executor           = Executors.newFixedThreadPool(1);
+    private static final SimpleDateFormat SIMPLE_DATE_FORMAT         = new SimpleDateFormat("dd-MM-YYYY HH:mm:ss");
+    // a replica that does not hand out a connection quickly is ejected rather than waited for
+    private static final long             REPLICA_CONNECTION_TIMEOUT = 2000;
+    private              ExecutorService  executor                   = Executors.newFixedThreadPool(1);
     private              HikariDataSource hikariDataSource;
+    private              List<Replica>    replicas                   = Collections.emptyList();
+    private              AtomicInteger    nextReplica                = new AtomicInteger();
+    private              long             replicaCooldownMillis;
+    private              CircuitBreaker   circuitBreaker             = CircuitBreaker.disabled();
+    private              Bulkhead         bulkhead                   = Bulkhead.unlimited();
+    
+    private static class Replica {
+        private final    HikariDataSource dataSource;
+        private volatile long             ejectedUntil;
+        
+        private Replica(HikariDataSource dataSource) {
+            this.dataSource = dataSource;
+        }
+    }
     
     public DataSourceProvider() {
     }
@@ -29,8 +53,109 @@ public class DataSourceProvider implements Closeable {
         return Optional.ofNullable(hikariDataSource);
     }
     
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+    
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+    
+    public Bulkhead getBulkhead() {
+        return bulkhead;
+    }
+    
+    public void setBulkhead(Bulkhead bulkhead) {
+        this.bulkhead = bulkhead;
+    }
+    
+    /**
+     * Connections read queries can count on: those of the primary or, with replicas, the fewer of the replica pools
+     * together and the primary they fall back to.
+     */
+    public int getReadPoolSize() {
+        int primary = hikariDataSource != null ? hikariDataSource.getMaximumPoolSize() : 0;
+        if (replicas.isEmpty()) {
+            return primary;
+        }
+        return Math.min(primary, replicas.stream().mapToInt(r -> r.dataSource.getMaximumPoolSize()).sum());
+    }
+    
+    public long getConnectionTimeout() {
+        return hikariDataSource != null ? hikariDataSource.getConnectionTimeout() : 0;
+    }
     
-    public void configure(String url, RDBMS rdbms, String user, String pass, String name) {
+    /**
+     * A connection for read-only queries: from the next healthy replica in turn, or from the primary when there is
+     * no replica or none can be reached. A replica failing to give a connection is ejected for the cooldown period.
+     */
+    Connection getReadConnection() throws SQLException {
+        List<Replica> candidates = this.replicas;
+        long          now        = System.currentTimeMillis();
+        int           start      = candidates.isEmpty() ? 0 : Math.floorMod(nextReplica.getAndIncrement(), candidates.size());
+        for (int i = 0; i < candidates.size(); i++) {
+            Replica replica = candidates.get((start + i) % candidates.size());
+            if (replica.ejectedUntil > now) {
+                continue;
+            }
+            try {
+                return replica.dataSource.getConnection();
+            } catch (SQLException e) {
+                replica.ejectedUntil = System.currentTimeMillis() + replicaCooldownMillis;
+                log.warnv("Replica ejected for {0}ms: pool={1} cause={2}", replicaCooldownMillis, replica.dataSource.getPoolName(), e.getMessage());
+            }
+        }
+        HikariDataSource primary = this.hikariDataSource;
+        if (primary == null) {
+            throw new SQLException("Data source is not configured");
+        }
+        return primary.getConnection();
+    }
+    
+    
+    /**
+     * @param replicaUrls             comma separated JDBC URLs of read replicas, sharing the primary credentials; may be empty
+     * @param connectionTimeoutMillis caps the wait for a pooled connection, e.g. to the longest query budget; 0 keeps the
+     *                                Hikari default of 30 seconds (2 seconds for replicas)
+     */
+    public void configure(String url, String replicaUrls, long replicaCooldownSeconds, long connectionTimeoutMillis, RDBMS rdbms, String user, String pass, String name) {
+        List<HikariConfig> replicaConfigs = new ArrayList<>();
+        int                n              = 0;
+        for (String replicaUrl : splitUrls(replicaUrls)) {
+            replicaConfigs.add(newConfig(replicaUrl, rdbms, user, pass, name + "-replica-" + (++n)));
+        }
+        configure(newConfig(url, rdbms, user, pass, name), replicaConfigs, replicaCooldownSeconds, connectionTimeoutMillis);
+    }
+    
+    /**
+     * Replaces the pools with new ones built from the primary and replica configurations. The connection timeout is
+     * set on the configurations, as a pool reads it only when it is built.
+     */
+    void configure(HikariConfig primaryConfig, List<HikariConfig> replicaConfigs, long replicaCooldownSeconds, long connectionTimeoutMillis) {
+        // Hikari does not accept less than 250ms
+        if (connectionTimeoutMillis > 0) {
+            primaryConfig.setConnectionTimeout(Math.max(connectionTimeoutMillis, 250));
+        }
+        long replicaTimeout = connectionTimeoutMillis > 0 ? Math.max(Math.min(connectionTimeoutMillis, REPLICA_CONNECTION_TIMEOUT), 250) : REPLICA_CONNECTION_TIMEOUT;
+        HikariDataSource newDS = new HikariDataSource(primaryConfig);
+        newDS.validate();
+        List<Replica> newReplicas = new ArrayList<>();
+        for (HikariConfig replicaConfig : replicaConfigs) {
+            replicaConfig.setConnectionTimeout(replicaTimeout);
+            // an unreachable replica must not prevent startup; it is ejected on first use instead
+            replicaConfig.setInitializationFailTimeout(-1);
+            newReplicas.add(new Replica(new HikariDataSource(replicaConfig)));
+        }
+        HikariDataSource old         = this.hikariDataSource;
+        List<Replica>    oldReplicas = this.replicas;
+        this.replicaCooldownMillis = replicaCooldownSeconds * 1000;
+        this.replicas = newReplicas;
+        this.hikariDataSource = newDS;
+        disposeOldDataSource(old);
+        oldReplicas.forEach(r -> disposeOldDataSource(r.dataSource));
+    }
+    
+    private static HikariConfig newConfig(String url, RDBMS rdbms, String user, String pass, String name) {
         HikariConfig hikariConfig = new HikariConfig();
         hikariConfig.setUsername(user);
         hikariConfig.setPassword(pass);
@@ -38,11 +163,14 @@ public class DataSourceProvider implements Closeable {
         hikariConfig.setJdbcUrl(url);
         hikariConfig.setConnectionTestQuery(rdbms.getTestString());
         hikariConfig.setDriverClassName(rdbms.getDriver());
-        HikariDataSource newDS = new HikariDataSource(hikariConfig);
-        newDS.validate();
-        HikariDataSource old = this.hikariDataSource;
-        this.hikariDataSource = newDS;
-        disposeOldDataSource(old);
+        return hikariConfig;
+    }
+    
+    private static List<String> splitUrls(String urls) {
+        if (StringUtils.isBlank(urls)) {
+            return Collections.emptyList();
+        }
+        return Arrays.stream(urls.split(",")).map(String::trim).filter(StringUtils::isNotEmpty).collect(Collectors.toList());
     }
     
     private void disposeOldDataSource(HikariDataSource old) {
@@ -63,5 +191,6 @@ public class DataSourceProvider implements Closeable {
         if (hikariDataSource != null) {
             hikariDataSource.close();
         }
+        replicas.forEach(r -> r.dataSource.close());
     }
 }
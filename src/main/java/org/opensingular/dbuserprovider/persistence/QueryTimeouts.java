@@ -0,0 +1,85 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Time budget of each {@link QueryType}, from the moment the query is requested: the time spent waiting for a pooled
+ * connection is taken from the budget and the rest becomes the statement timeout, so the driver cancels the
+ * statement when the budget runs out.
+ */
+public class QueryTimeouts {
+
+    private final Map<QueryType, Long>      timeoutMillis = new EnumMap<>(QueryType.class);
+    private final Map<QueryType, LongAdder> timedOut      = new EnumMap<>(QueryType.class);
+
+    /**
+     * @param timeoutMillis budget per query type; 0 or missing means no timeout
+     */
+    public QueryTimeouts(Map<QueryType, Long> timeoutMillis) {
+        for (QueryType type : QueryType.values()) {
+            this.timeoutMillis.put(type, Math.max(timeoutMillis.getOrDefault(type, 0L), 0L));
+            this.timedOut.put(type, new LongAdder());
+        }
+    }
+
+    /**
+     * @return the deadline, in {@link System#nanoTime()} terms, of a query of this type starting now; 0 when unbounded
+     */
+    public long deadline(QueryType type) {
+        long millis = timeoutMillis.get(type);
+        return millis > 0 ? Math.max(System.nanoTime() + millis * 1_000_000, 1) : 0;
+    }
+
+    /**
+     * @return the statement timeout in whole seconds (JDBC granularity, at least 1) left before the deadline, or 0 for
+     * no timeout
+     * @throws SQLTimeoutException when the deadline has already passed, e.g. while waiting for a connection
+     */
+    public int remainingSeconds(QueryType type, long deadline) throws SQLTimeoutException {
+        if (deadline == 0) {
+            return 0;
+        }
+        long remainingNanos = deadline - System.nanoTime();
+        if (remainingNanos <= 0) {
+            throw new SQLTimeoutException("Query budget of " + timeoutMillis.get(type) + "ms exhausted before the statement started: " + type);
+        }
+        return (int) Math.max(1, (remainingNanos + 999_999_999) / 1_000_000_000);
+    }
+
+    /**
+     * Counts the failure when it is a timeout: {@link SQLTimeoutException}, or the cancellation SQL states of
+     * drivers that do not use it (57014 for PostgreSQL and DB2, HYT00 for jTDS).
+     *
+     * @return whether the failure was a timeout
+     */
+    public boolean recordIfTimeout(QueryType type, SQLException e) {
+        boolean timeout = e instanceof SQLTimeoutException || "57014".equals(e.getSQLState()) || "HYT00".equals(e.getSQLState());
+        if (timeout) {
+            timedOut.get(type).increment();
+        }
+        return timeout;
+    }
+
+    public long getTimedOut(QueryType type) {
+        return timedOut.get(type).sum();
+    }
+
+    /**
+     * Longest budget of all query types, 0 when one of them is unbounded.
+     */
+    public long getMaxTimeoutMillis() {
+        return timeoutMillis.values().stream().anyMatch(t -> t == 0) ? 0 : timeoutMillis.values().stream().mapToLong(Long::longValue).max().orElse(0);
+    }
+
+    @Override
+    public String toString() {
+        return "QueryTimeouts" + timedOut.entrySet().stream()
+                                         .map(e -> e.getKey() + "=" + e.getValue().sum())
+                                         .collect(Collectors.joining(", ", "{timedOut: ", "}"));
+    }
+}
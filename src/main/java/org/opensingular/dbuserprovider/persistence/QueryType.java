@@ -0,0 +1,27 @@
+package org.opensingular.dbuserprovider.persistence;
+
+/**
+ * What a query is run for, so each kind gets its own time budget and connection lane.
+ */
+public enum QueryType {
+    /** user lookups by id, username or email, on the login path */
+    LOGIN_LOOKUP(Bulkhead.Lane.AUTH),
+    /** password hash fetches, on the login path */
+    HASH_FETCH(Bulkhead.Lane.AUTH),
+    /** user searches from the admin console and user pickers */
+    SEARCH(Bulkhead.Lane.ADMIN),
+    /** user counts */
+    COUNT(Bulkhead.Lane.ADMIN),
+    /** user listings */
+    LISTING(Bulkhead.Lane.ADMIN);
+
+    private final Bulkhead.Lane lane;
+
+    QueryType(Bulkhead.Lane lane) {
+        this.lane = lane;
+    }
+
+    public Bulkhead.Lane getLane() {
+        return lane;
+    }
+}
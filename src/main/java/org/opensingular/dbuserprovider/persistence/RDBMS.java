@@ -13,22 +13,24 @@ import java.util.List;
 import java.util.stream.Collectors;
 
 public enum RDBMS {
-    POSTGRESQL("PostgreSQL 10+", org.postgresql.Driver.class.getName(), "SELECT 1", new PostgreSQL10Dialect()),
-    MYSQL("MySQL 5.7+", com.mysql.cj.jdbc.Driver.class.getName(), "SELECT 1", new MySQL57Dialect()),
-    ORACLE("Oracle 12+", oracle.jdbc.OracleDriver.class.getName(), "SELECT 1 FROM DUAL", new Oracle12cDialect()),
-    IBMDB2("IBM DB2", com.ibm.db2.jcc.DB2Driver.class.getName(), "select * from sysibm.sysdummy1", new DB2Dialect()),
-    SQL_SERVER("MS SQL Server 2012+ (jtds)", net.sourceforge.jtds.jdbc.Driver.class.getName(), "SELECT 1", new SQLServer2012Dialect());
+    POSTGRESQL("PostgreSQL 10+", org.postgresql.Driver.class.getName(), "SELECT 1", new PostgreSQL10Dialect(), true),
+    MYSQL("MySQL 5.7+", com.mysql.cj.jdbc.Driver.class.getName(), "SELECT 1", new MySQL57Dialect(), false),
+    ORACLE("Oracle 12+", oracle.jdbc.OracleDriver.class.getName(), "SELECT 1 FROM DUAL", new Oracle12cDialect(), true),
+    IBMDB2("IBM DB2", com.ibm.db2.jcc.DB2Driver.class.getName(), "select * from sysibm.sysdummy1", new DB2Dialect(), true),
+    SQL_SERVER("MS SQL Server 2012+ (jtds)", net.sourceforge.jtds.jdbc.Driver.class.getName(), "SELECT 1", new SQLServer2012Dialect(), true);
 
     private final String  desc;
     private final String  driver;
     private final String  testString;
     private final Dialect dialect;
+    private final boolean windowCount;
 
-    RDBMS(String desc, String driver, String testString, Dialect dialect) {
+    RDBMS(String desc, String driver, String testString, Dialect dialect, boolean windowCount) {
         this.desc = desc;
         this.driver = driver;
         this.testString = testString;
         this.dialect = dialect;
+        this.windowCount = windowCount;
     }
 
     public static RDBMS getByDescription(String desc) {
@@ -60,5 +62,53 @@ public enum RDBMS {
         return testString;
     }
 
+    /**
+     * Whether {@code count(*) over()} can return the total row count along with a page.
+     */
+    public boolean supportsWindowCount() {
+        return windowCount;
+    }
+
+    /**
+     * Largest number of bind parameters (or IN list elements, for Oracle) a single statement accepts.
+     */
+    public int getMaxParameters() {
+        switch (this) {
+            case ORACLE:
+                return 1000;
+            case SQL_SERVER:
+                return 2000;
+            default:
+                return 32767;
+        }
+    }
+
+    /**
+     * Formats a search term as a prefix query of this database full-text engine, every word required.
+     *
+     * @return null when the term has no word to search
+     */
+    public String fullTextTerm(String search) {
+        if (search == null) {
+            return null;
+        }
+        List<String> words = Arrays.stream(search.split("[^\\p{L}\\p{N}]+"))
+                                   .filter(w -> !w.isEmpty())
+                                   .collect(Collectors.toList());
+        if (words.isEmpty()) {
+            return null;
+        }
+        switch (this) {
+            case POSTGRESQL:
+                return words.stream().map(w -> w + ":*").collect(Collectors.joining(" & "));
+            case MYSQL:
+                return words.stream().map(w -> "+" + w + "*").collect(Collectors.joining(" "));
+            case ORACLE:
+                return words.stream().map(w -> w + "%").collect(Collectors.joining(" AND "));
+            default:
+                return words.stream().map(w -> "\"" + w + "*\"").collect(Collectors.joining(" AND "));
+        }
+    }
+
 
 }
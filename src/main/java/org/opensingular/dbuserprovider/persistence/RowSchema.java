@@ -0,0 +1,97 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Column labels of a result set, resolved once per statement and shared by every row (and every execution of
+ * the same query) read with it.
+ */
+public final class RowSchema {
+
+    private static final Cache<List<String>, RowSchema> SCHEMAS = CacheBuilder.newBuilder().maximumSize(1000).build();
+
+    private final String[]             labels;
+    private final int[]                columns;
+    private final Map<String, Integer> positions;
+
+    private RowSchema(String[] labels, int[] columns) {
+        this.labels = labels;
+        this.columns = columns;
+        this.positions = new HashMap<>(labels.length * 2);
+        for (int i = 0; i < labels.length; i++) {
+            positions.put(labels[i], i);
+        }
+    }
+
+    public static RowSchema of(ResultSet rs) throws SQLException {
+        return of(rs, null);
+    }
+
+    /**
+     * @param excludedLabel a technical column (e.g. a window count) left out of the rows, case insensitive
+     */
+    public static RowSchema of(ResultSet rs, String excludedLabel) throws SQLException {
+        ResultSetMetaData metaData = rs.getMetaData();
+        int               count    = metaData.getColumnCount();
+        List<String>      key      = new ArrayList<>(count + 1);
+        for (int i = 1; i <= count; i++) {
+            key.add(metaData.getColumnLabel(i));
+        }
+        // the raw labels in column order, then the excluded label, fix the column of every kept label
+        key.add(excludedLabel == null ? "" : excludedLabel.toLowerCase());
+        try {
+            return SCHEMAS.get(key, () -> resolve(key.subList(0, count), excludedLabel));
+        } catch (ExecutionException e) {
+            throw new SQLException(e.getCause());
+        }
+    }
+
+    private static RowSchema resolve(List<String> rawLabels, String excludedLabel) {
+        List<String> labels  = new ArrayList<>(rawLabels.size());
+        int[]        columns = new int[rawLabels.size()];
+        for (int i = 0; i < rawLabels.size(); i++) {
+            String label = rawLabels.get(i);
+            // a repeated label keeps the first column, like ResultSet.getString(label)
+            if (!labels.contains(label) && !label.equalsIgnoreCase(excludedLabel)) {
+                columns[labels.size()] = i + 1;
+                labels.add(label);
+            }
+        }
+        return new RowSchema(labels.stream().map(String::intern).toArray(String[]::new), Arrays.copyOf(columns, labels.size()));
+    }
+
+    /**
+     * Reads the current row of the result set.
+     */
+    public UserRow read(ResultSet rs) throws SQLException {
+        String[] values = new String[labels.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = rs.getString(columns[i]);
+        }
+        return new UserRow(this, values);
+    }
+
+    int size() {
+        return labels.length;
+    }
+
+    String label(int position) {
+        return labels[position];
+    }
+
+    int position(Object label) {
+        Integer position = positions.get(label);
+        return position == null ? -1 : position;
+    }
+}
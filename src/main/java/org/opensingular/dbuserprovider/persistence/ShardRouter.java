@@ -0,0 +1,195 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import lombok.extern.jbosslog.JBossLog;
+import org.opensingular.dbuserprovider.util.DaemonThreadFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Spreads the users of one provider over several databases with the same schema: lookups go to the shard owning the
+ * user, listings, searches and counts run on every shard in parallel.
+ */
+@JBossLog
+public class ShardRouter implements Closeable {
+
+    public enum Rule {
+        /** the id starts with the prefix of its shard */
+        ID_PREFIX,
+        /** the id hash modulo the number of shards */
+        HASH,
+        /** every shard in order, remembering where the key was found */
+        PROBE;
+
+        public static List<String> getAllNames() {
+            return Arrays.stream(values()).map(Rule::name).collect(Collectors.toList());
+        }
+    }
+
+    private final List<DataSourceProvider> shards;
+    private final Rule                     rule;
+    private final List<String>             idPrefixes;
+    private final Cache<String, Integer>   located;
+    private final ExecutorService          executor;
+
+    /**
+     * @param idPrefixes comma separated id prefix of each shard, in shard order, for {@link Rule#ID_PREFIX}
+     */
+    public ShardRouter(String name, List<DataSourceProvider> shards, Rule rule, String idPrefixes) {
+        this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+        this.rule = rule == null ? Rule.PROBE : rule;
+        this.idPrefixes = Arrays.stream(String.valueOf(idPrefixes == null ? "" : idPrefixes).split(","))
+                                .map(String::trim)
+                                .collect(Collectors.toList());
+        this.located = CacheBuilder.newBuilder().maximumSize(100000).expireAfterWrite(1, TimeUnit.HOURS).build();
+        this.executor = shards.size() > 1 ? newExecutor(name, shards) : null;
+    }
+
+    /**
+     * One thread per read connection of all shards, so concurrent scatters only wait where the shards would make them
+     * wait anyway; idle threads are released after a minute.
+     */
+    private static ExecutorService newExecutor(String name, List<DataSourceProvider> shards) {
+        int threads = Math.max(shards.size(), shards.stream().mapToInt(DataSourceProvider::getReadPoolSize).sum());
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                                             new LinkedBlockingQueue<>(),
+                                                             new DaemonThreadFactory(name, "shard"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    public List<DataSourceProvider> getShards() {
+        return shards;
+    }
+
+    public boolean isSharded() {
+        return shards.size() > 1;
+    }
+
+    /**
+     * The shard owning an id, or null when the rule can not tell without probing.
+     */
+    private Integer owner(String id) {
+        if (rule == Rule.HASH) {
+            return Math.floorMod(id.hashCode(), shards.size());
+        }
+        if (rule == Rule.ID_PREFIX) {
+            for (int i = 0; i < idPrefixes.size() && i < shards.size(); i++) {
+                if (!idPrefixes.get(i).isEmpty() && id.startsWith(idPrefixes.get(i))) {
+                    return i;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Runs a single user lookup on the shard owning the key.
+     *
+     * @param key   cache key of the lookup, e.g. "id:42" or "username:john"
+     * @param id    the user id when looking up by id, null otherwise
+     * @param query the lookup on one shard, returning null when it fails
+     * @param found whether a lookup result holds a user
+     * @return the result of the owning shard, the first result holding a user when probing, an empty result otherwise,
+     * or null when a shard failed and no shard holds the user
+     */
+    public <T> T lookup(String key, String id, Function<DataSourceProvider, T> query, Predicate<T> found) {
+        if (!isSharded()) {
+            return query.apply(shards.get(0));
+        }
+        Integer owner = id != null ? owner(id) : null;
+        if (owner != null) {
+            return query.apply(shards.get(owner));
+        }
+        Integer known = located.getIfPresent(key);
+        if (known != null) {
+            T result = query.apply(shards.get(known));
+            if (result != null && found.test(result)) {
+                return result;
+            }
+            located.invalidate(key);
+        }
+        T       empty  = null;
+        boolean failed = false;
+        for (int i = 0; i < shards.size(); i++) {
+            T result = query.apply(shards.get(i));
+            if (result == null) {
+                failed = true;
+            } else if (found.test(result)) {
+                located.put(key, i);
+                return result;
+            } else {
+                empty = result;
+            }
+        }
+        return failed ? null : empty;
+    }
+
+    /**
+     * Groups ids by owning shard; ids without an owner are listed under every shard.
+     */
+    public List<List<String>> partition(List<String> ids) {
+        List<List<String>> partitions = new ArrayList<>();
+        for (int i = 0; i < shards.size(); i++) {
+            partitions.add(new ArrayList<>());
+        }
+        for (String id : ids) {
+            Integer owner = isSharded() ? owner(id) : Integer.valueOf(0);
+            if (owner == null) {
+                partitions.forEach(p -> p.add(id));
+            } else {
+                partitions.get(owner).add(id);
+            }
+        }
+        return partitions;
+    }
+
+    /**
+     * Runs the query on every shard in parallel.
+     *
+     * @return the result of each shard, in shard order; null for a shard that failed
+     */
+    public <T> List<T> scatter(Function<DataSourceProvider, T> query) {
+        if (!isSharded()) {
+            return Collections.singletonList(query.apply(shards.get(0)));
+        }
+        List<Future<T>> futures = shards.stream().map(s -> executor.submit(() -> query.apply(s))).collect(Collectors.toList());
+        List<T>         results = new ArrayList<>();
+        for (Future<T> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                results.add(null);
+            } catch (ExecutionException e) {
+                log.error(e.getCause().getMessage(), e.getCause());
+                results.add(null);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Stops the scatter-gather threads; the shard data sources are closed by their owner.
+     */
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+}
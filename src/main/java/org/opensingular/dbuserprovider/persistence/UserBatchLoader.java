@@ -0,0 +1,118 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import lombok.extern.jbosslog.JBossLog;
+import org.opensingular.dbuserprovider.DBUserStorageException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Resolves user lookups by id arriving close together with one {@code id IN (...)} query. A lookup arriving while no
+ * batch is running is resolved at once; otherwise the first caller waits {@code windowMillis} to gather the others.
+ */
+@JBossLog
+public class UserBatchLoader {
+
+    private final long                                                           windowMillis;
+    private final int                                                            batchSize;
+    private final Function<List<String>, Map<String, List<Map<String, String>>>> query;
+    private final Map<String, CompletableFuture<List<Map<String, String>>>>      inFlight = new ConcurrentHashMap<>();
+    private final Object                                                         lock     = new Object();
+    private       List<String>                                                   pending  = new ArrayList<>();
+    private       boolean                                                        flushing;
+    private       int                                                            running;
+
+    /**
+     * @param query runs the batch query for the ids, returning the result of each id as {@link #load(String)} does
+     */
+    public UserBatchLoader(long windowMillis, int batchSize, Function<List<String>, Map<String, List<Map<String, String>>>> query) {
+        this.windowMillis = Math.max(windowMillis, 0);
+        this.batchSize = Math.max(batchSize, 1);
+        this.query = query;
+    }
+
+    /**
+     * @return the user row in a single element list, an empty list when there is no such user, null when the query
+     * failed
+     */
+    public List<Map<String, String>> load(String id) {
+        CompletableFuture<List<Map<String, String>>> future   = new CompletableFuture<>();
+        CompletableFuture<List<Map<String, String>>> existing = inFlight.putIfAbsent(id, future);
+        if (existing != null) {
+            return await(existing);
+        }
+        boolean leader;
+        boolean contended;
+        synchronized (lock) {
+            pending.add(id);
+            leader = !flushing;
+            flushing = true;
+            contended = running > 0;
+        }
+        if (leader) {
+            flush(contended);
+        }
+        return await(future);
+    }
+
+    private void flush(boolean contended) {
+        if (contended && windowMillis > 0) {
+            try {
+                Thread.sleep(windowMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        List<String> ids;
+        synchronized (lock) {
+            ids = pending;
+            pending = new ArrayList<>();
+            flushing = false;
+            running++;
+        }
+        try {
+            for (int from = 0; from < ids.size(); from += batchSize) {
+                resolve(ids.subList(from, Math.min(from + batchSize, ids.size())));
+            }
+        } finally {
+            synchronized (lock) {
+                running--;
+            }
+        }
+    }
+
+    private void resolve(List<String> ids) {
+        Map<String, List<Map<String, String>>> results = null;
+        try {
+            results = query.apply(ids);
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
+        }
+        for (String id : ids) {
+            CompletableFuture<List<Map<String, String>>> future = inFlight.remove(id);
+            if (future != null) {
+                future.complete(results == null ? null : results.get(id));
+            }
+        }
+    }
+
+    private static List<Map<String, String>> await(CompletableFuture<List<Map<String, String>>> future) {
+        try {
+            return future.get(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            throw new DBUserStorageException(e.getCause().getMessage(), e.getCause());
+        } catch (Exception e) {
+            log.warnv("Batched user lookup did not complete: {0}", e.toString());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * User rows shared by every session of one provider component, with misses kept apart under their own TTL.
+ */
+public class UserCache {
+
+    private final boolean                            enabled;
+    private final boolean                            staleEnabled;
+    private final Cache<String, Map<String, String>> found;
+    private final Cache<String, Boolean>             notFound;
+    private final Cache<String, Map<String, String>> lastKnown;
+
+    public UserCache(long maxSize, long ttlSeconds, long idleSeconds, long negativeTtlSeconds, long staleTtlSeconds) {
+        this.enabled      = maxSize > 0 && ttlSeconds > 0;
+        this.staleEnabled = maxSize > 0 && staleTtlSeconds > 0;
+        this.found        = newCache(maxSize, ttlSeconds, idleSeconds);
+        this.notFound     = newCache(maxSize, negativeTtlSeconds, idleSeconds);
+        this.lastKnown    = newCache(maxSize, staleTtlSeconds, 0);
+    }
+
+    private static <V> Cache<String, V> newCache(long maxSize, long ttlSeconds, long idleSeconds) {
+        CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder()
+                                                           .maximumSize(Math.max(maxSize, 0))
+                                                           .expireAfterWrite(Math.max(ttlSeconds, 0), TimeUnit.SECONDS)
+                                                           .recordStats();
+        if (idleSeconds > 0) {
+            builder.expireAfterAccess(idleSeconds, TimeUnit.SECONDS);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns the cached row for the key or runs the loader. The loader returns the query rows, or null when the
+     * query failed; failures are never cached. A freshly loaded row is also stored under the key computed by
+     * {@code aliasKey}, so a lookup by id warms the lookup by username and vice versa.
+     */
+    public Optional<Map<String, String>> get(String key, Function<Map<String, String>, String> aliasKey, Supplier<List<Map<String, String>>> loader) {
+        if (!enabled) {
+            List<Map<String, String>> rows = loader.get();
+            if (rows == null) {
+                return stale(key);
+            }
+            Optional<Map<String, String>> user = firstRow(rows);
+            remember(key, user.orElse(null));
+            return user;
+        }
+        Map<String, String> user = found.getIfPresent(key);
+        if (user != null) {
+            return Optional.of(user);
+        }
+        if (notFound.getIfPresent(key) != null) {
+            return Optional.empty();
+        }
+        List<Map<String, String>> rows = loader.get();
+        if (rows == null) {
+            return stale(key);
+        }
+        if (rows.isEmpty()) {
+            notFound.put(key, Boolean.TRUE);
+            remember(key, null);
+            return Optional.empty();
+        }
+        user = Collections.unmodifiableMap(rows.get(0));
+        found.put(key, user);
+        remember(key, user);
+        String alias = aliasKey.apply(user);
+        if (alias != null) {
+            notFound.invalidate(alias);
+            found.put(alias, user);
+        }
+        return Optional.of(user);
+    }
+
+    private void remember(String key, Map<String, String> user) {
+        if (staleEnabled) {
+            if (user == null) {
+                lastKnown.invalidate(key);
+            } else {
+                lastKnown.put(key, user);
+            }
+        }
+    }
+
+    private Optional<Map<String, String>> stale(String key) {
+        return staleEnabled ? Optional.ofNullable(lastKnown.getIfPresent(key)) : Optional.empty();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public CacheStats getStats() {
+        return found.stats();
+    }
+
+    public CacheStats getNotFoundStats() {
+        return notFound.stats();
+    }
+
+    private static Optional<Map<String, String>> firstRow(List<Map<String, String>> rows) {
+        return Optional.ofNullable(rows).orElse(Collections.emptyList()).stream().findFirst();
+    }
+}
@@ -0,0 +1,108 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import lombok.extern.jbosslog.JBossLog;
+import org.opensingular.dbuserprovider.util.DaemonThreadFactory;
+
+import java.io.Closeable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * User counts per search term. A count older than the staleness window is still returned immediately while a
+ * background thread runs the count query again; with the staleness window off, totals read along with a page
+ * ({@link #put}) are served for {@code pageTotalTtlSeconds}.
+ */
+@JBossLog
+public class UserCountCache implements Closeable {
+
+    private final boolean                   enabled;
+    private final long                      stalenessMillis;
+    private final long                      pageTotalTtlMillis;
+    private final Cache<String, CountEntry> counts;
+    private final ExecutorService           executor;
+
+    private static class CountEntry {
+        private final int           count;
+        private final long          loadedAt   = System.currentTimeMillis();
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        private CountEntry(int count) {
+            this.count = count;
+        }
+    }
+
+    public UserCountCache(String name, long stalenessSeconds, long pageTotalTtlSeconds) {
+        this.enabled = stalenessSeconds > 0;
+        this.stalenessMillis = stalenessSeconds * 1000;
+        this.pageTotalTtlMillis = pageTotalTtlSeconds * 1000;
+        this.counts = CacheBuilder.newBuilder().maximumSize(1000).build();
+        this.executor = enabled ? Executors.newSingleThreadExecutor(new DaemonThreadFactory(name, "count")) : null;
+    }
+
+    /**
+     * @param loader runs the count query, returning null when it fails (failures are never cached)
+     */
+    public int get(String search, Supplier<Integer> loader) {
+        String     key   = search == null ? "" : search;
+        CountEntry entry = counts.getIfPresent(key);
+        if (!enabled) {
+            if (entry != null && System.currentTimeMillis() - entry.loadedAt < pageTotalTtlMillis) {
+                return entry.count;
+            }
+            return orZero(loader.get());
+        }
+        if (entry == null) {
+            Integer count = loader.get();
+            if (count != null) {
+                counts.put(key, new CountEntry(count));
+            }
+            return orZero(count);
+        }
+        if (System.currentTimeMillis() - entry.loadedAt > stalenessMillis && entry.refreshing.compareAndSet(false, true)) {
+            refresh(key, entry, loader);
+        }
+        return entry.count;
+    }
+
+    /**
+     * Records a total computed by another query, e.g. a page fetched with a window count.
+     */
+    public void put(String search, int count) {
+        counts.put(search == null ? "" : search, new CountEntry(count));
+    }
+
+    private void refresh(String key, CountEntry entry, Supplier<Integer> loader) {
+        try {
+            executor.submit(() -> {
+                try {
+                    Integer count = loader.get();
+                    if (count != null) {
+                        counts.put(key, new CountEntry(count));
+                    }
+                } catch (Exception e) {
+                    log.warnv(e, "User count refresh failed: search={0}", key);
+                } finally {
+                    entry.refreshing.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            entry.refreshing.set(false);
+        }
+    }
+
+    private static int orZero(Integer count) {
+        return count == null ? 0 : count;
+    }
+
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+}
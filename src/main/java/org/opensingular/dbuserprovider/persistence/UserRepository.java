@@ -1,61 +1,146 @@
 package org.opensingular.dbuserprovider.persistence;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import lombok.extern.jbosslog.JBossLog;
-import org.apache.commons.codec.binary.Hex;
-import org.apache.commons.codec.binary.StringUtils;
-import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang3.NotImplementedException;
-import at.favre.lib.crypto.bcrypt.BCrypt;
 import org.opensingular.dbuserprovider.DBUserStorageException;
 import org.opensingular.dbuserprovider.model.QueryConfigurations;
-import org.opensingular.dbuserprovider.util.PBKDF2SHA256HashingUtil;
 import org.opensingular.dbuserprovider.util.PagingUtil;
+import org.opensingular.dbuserprovider.util.PasswordVerificationExecutor;
+import org.opensingular.dbuserprovider.util.PasswordVerifier;
+import org.opensingular.dbuserprovider.util.VerifiedCredentialCache;
 import org.opensingular.dbuserprovider.util.PagingUtil.Pageable;
 
 import javax.sql.DataSource;
-import java.security.MessageDigest;
+import java.io.Closeable;
+import java.math.BigDecimal;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 
 @JBossLog
-public class UserRepository {
+public class UserRepository implements Closeable {
     
+    public static final  String PASSWORD_HASH_COLUMN = "hash_pwd";
     
-    private DataSourceProvider  dataSourceProvider;
-    private QueryConfigurations queryConfigurations;
+    private static final String TOTAL_COUNT_COLUMN = "total_count_";
     
-    public UserRepository(DataSourceProvider dataSourceProvider, QueryConfigurations queryConfigurations) {
-        this.dataSourceProvider  = dataSourceProvider;
-        this.queryConfigurations = queryConfigurations;
+    private static final String ID_KEY       = "id:";
+    private static final String USERNAME_KEY = "username:";
+    private static final String EMAIL_KEY    = "email:";
+    
+    private ShardRouter                  shards;
+    private QueryConfigurations          queryConfigurations;
+    private UserCache                    userCache;
+    private PasswordVerifier             passwordVerifier;
+    private PasswordVerificationExecutor verificationExecutor;
+    private VerifiedCredentialCache      verifiedCredentialCache;
+    private UserCountCache               userCountCache;
+    private UserSearchIndex              searchIndex;
+    private UserBatchLoader              batchLoader;
+    private UsernameFilter               usernameFilter;
+    private QueryTimeouts                queryTimeouts;
+    // keyset pagination: (search, offset) -> seek column value of the row just before that offset
+    private Cache<String, Object>        seekCursors = CacheBuilder.newBuilder()
+                                                                   .maximumSize(10000)
+                                                                   .expireAfterAccess(10, TimeUnit.MINUTES)
+                                                                   .build();
+    
+    public UserRepository(ShardRouter shards, QueryConfigurations queryConfigurations, UserCache userCache,
+                          PasswordVerifier passwordVerifier, PasswordVerificationExecutor verificationExecutor,
+                          VerifiedCredentialCache verifiedCredentialCache, UserCountCache userCountCache, UserSearchIndex searchIndex,
+                          long batchWindowMillis, int batchSize, UsernameFilter usernameFilter, QueryTimeouts queryTimeouts) {
+        this.shards                  = shards;
+        this.queryConfigurations     = queryConfigurations;
+        this.userCache               = userCache;
+        this.passwordVerifier        = passwordVerifier;
+        this.verificationExecutor    = verificationExecutor;
+        this.verifiedCredentialCache = verifiedCredentialCache;
+        this.userCountCache          = userCountCache;
+        this.searchIndex             = searchIndex;
+        this.batchLoader             = queryConfigurations.hasFindByIds()
+                                       ? new UserBatchLoader(batchWindowMillis, Math.min(batchSize, queryConfigurations.getRDBMS().getMaxParameters()), this::findUsersByIds)
+                                       : null;
+        this.usernameFilter          = usernameFilter;
+        this.queryTimeouts           = queryTimeouts;
+        Supplier<Stream<Map<String, String>>> allUsers = () -> {
+            try {
+                return openUserStream(null);
+            } catch (SQLException e) {
+                throw new DBUserStorageException(e.getMessage(), e);
+            }
+        };
+        searchIndex.start(allUsers);
+        usernameFilter.start(() -> countUsers(null), allUsers);
     }
     
     
-    private <T> T doQuery(String query, Pageable pageable, Function<ResultSet, T> resultTransformer, Object... params) {
-        Optional<DataSource> dataSourceOpt = dataSourceProvider.getDataSource();
+    private <T> T doQuery(DataSourceProvider shard, QueryType type, String query, Pageable pageable, Function<ResultSet, T> resultTransformer, Object... params) {
+        Optional<DataSource> dataSourceOpt = shard.getDataSource();
         if (dataSourceOpt.isPresent()) {
-            DataSource dataSource = dataSourceOpt.get();
-            try (Connection c = dataSource.getConnection()) {
-                if (pageable != null) {
-                    query = PagingUtil.formatScriptWithPageable(query, pageable, queryConfigurations.getRDBMS());
+            // the wait for a connection lane counts against the query budget
+            long            deadline = queryTimeouts.deadline(type);
+            Bulkhead.Permit permit   = shard.getBulkhead().acquire(type.getLane(), deadline);
+            if (permit == null) {
+                return null;
+            }
+            CircuitBreaker circuitBreaker = shard.getCircuitBreaker();
+            long           call           = circuitBreaker.tryAcquire();
+            if (call == CircuitBreaker.REJECTED) {
+                permit.close();
+                log.debugv("Query rejected, circuit breaker is open: {0}", query);
+                return null;
+            }
+            long    start   = System.nanoTime();
+            boolean success = false;
+            // every query of this provider is a read: replicas, when configured, serve it
+            try (Connection c = shard.getReadConnection()) {
+                int timeout = queryTimeouts.remainingSeconds(type, deadline);
+                PagingUtil.PagedQuery pagedQuery = pageable != null ? PagingUtil.pagedQuery(query, pageable, queryConfigurations.getRDBMS()) : null;
+                if (pagedQuery != null) {
+                    query = pagedQuery.getSql();
                 }
                 log.infov("Query: {0} params: {1} ", query, Arrays.toString(params));
                 try (PreparedStatement statement = c.prepareStatement(query)) {
+                    if (timeout > 0) {
+                        statement.setQueryTimeout(timeout);
+                    }
+                    int offset = pagedQuery != null ? pagedQuery.bindLimitParametersAtStart(statement, pageable) : 0;
                     if (params != null) {
                         for (int i = 1; i <= params.length; i++) {
-                            statement.setObject(i, params[i - 1]);
+                            statement.setObject(offset + i, params[i - 1]);
                         }
                     }
+                    if (pagedQuery != null) {
+                        pagedQuery.bindLimitParametersAtEnd(statement, pageable, offset);
+                    }
                     try (ResultSet rs = statement.executeQuery()) {
-                        return resultTransformer.apply(rs);
+                        T result = resultTransformer.apply(rs);
+                        success = true;
+                        return result;
                     }
                 }
             } catch (SQLException e) {
-                log.error(e.getMessage(), e);
+                if (queryTimeouts.recordIfTimeout(type, e)) {
+                    log.warnv("Query timed out: type={0} query={1} cause={2}", type, query, e.getMessage());
+                } else {
+                    log.error(e.getMessage(), e);
+                }
+            } finally {
+                circuitBreaker.record(call, success, System.nanoTime() - start);
+                permit.close();
             }
             return null;
         }
@@ -63,19 +148,21 @@ public class UserRepository {
     }
     
     private List<Map<String, String>> readMap(ResultSet rs) {
+        return readMap(rs, null);
+    }
+    
+    /**
+     * @param lastSeekKey when not null, receives the keyset pagination column value of the last row read
+     */
+    private List<Map<String, String>> readMap(ResultSet rs, AtomicReference<Object> lastSeekKey) {
         try {
-            List<Map<String, String>> data         = new ArrayList<>();
-            Set<String>               columnsFound = new HashSet<>();
-            for (int i = 1; i <= rs.getMetaData().getColumnCount(); i++) {
-                String columnLabel = rs.getMetaData().getColumnLabel(i);
-                columnsFound.add(columnLabel);
-            }
+            List<Map<String, String>> data   = new ArrayList<>();
+            RowSchema                 schema = RowSchema.of(rs);
             while (rs.next()) {
-                Map<String, String> result = new HashMap<>();
-                for (String col : columnsFound) {
-                    result.put(col, rs.getString(col));
+                data.add(schema.read(rs));
+                if (lastSeekKey != null) {
+                    lastSeekKey.set(rs.getObject(queryConfigurations.getSeekColumnLabel()));
                 }
-                data.add(result);
             }
             return data;
         } catch (Exception e) {
@@ -108,57 +195,601 @@ public class UserRepository {
         }
     }
     
+    /**
+     * The only shard, or the first one, serving the queries that are not spread across shards.
+     */
+    private DataSourceProvider firstShard() {
+        return shards.getShards().get(0);
+    }
+    
     public List<Map<String, String>> getAllUsers() {
-        return doQuery(queryConfigurations.getListAll(), null, this::readMap);
+        return concat(shards.scatter(s -> doQuery(s, QueryType.LISTING, queryConfigurations.getListAll(), null, this::readMap)));
+    }
+    
+    /**
+     * Rows of every shard, or null when every shard failed.
+     */
+    private static List<Map<String, String>> concat(List<List<Map<String, String>>> shardRows) {
+        if (shardRows.stream().allMatch(Objects::isNull)) {
+            return null;
+        }
+        return shardRows.stream().filter(Objects::nonNull).flatMap(List::stream).collect(Collectors.toList());
     }
     
     public int getUsersCount(String search) {
-        if (search == null || search.isEmpty()) {
-            return Optional.ofNullable(doQuery(queryConfigurations.getCount(), null, this::readInt)).orElse(0);
+        if (search != null && !search.isEmpty() && searchIndex.isReady()) {
+            return searchIndex.count(search);
+        }
+        return userCountCache.get(search, () -> countUsers(search));
+    }
+    
+    private Integer countUsers(String search) {
+        List<Integer> counts = shards.scatter(s -> countUsers(s, search));
+        if (counts.stream().allMatch(Objects::isNull)) {
+            return null;
+        }
+        return counts.stream().filter(Objects::nonNull).mapToInt(Integer::intValue).sum();
+    }
+    
+    private Integer countUsers(DataSourceProvider shard, String search) {
+        if (!isSearch(search)) {
+            return doQuery(shard, QueryType.COUNT, queryConfigurations.getCount(), null, this::readInt);
         } else {
             String query = String.format("select count(*) from (%s) count", queryConfigurations.getFindBySearchTerm());
-            return Optional.ofNullable(doQuery(query, null, this::readInt, search)).orElse(0);
+            return doQuery(shard, QueryType.COUNT, query, null, this::readInt, searchParams(search));
         }
     }
     
     
     public Map<String, String> findUserById(String id) {
-        return Optional.ofNullable(doQuery(queryConfigurations.getFindById(), null, this::readMap, id))
-                       .orElse(Collections.emptyList())
-                       .stream().findFirst().orElse(null);
+        return userCache.get(ID_KEY + id, u -> USERNAME_KEY + u.get("username"),
+                             () -> indexed(batchLoader != null ? batchLoader.load(id) : lookup(QueryType.LOGIN_LOOKUP, ID_KEY + id, id, queryConfigurations.getFindById(), id), id))
+                        .orElse(null);
+    }
+    
+    /**
+     * Runs a single user query on the shard holding the user.
+     */
+    private List<Map<String, String>> lookup(QueryType type, String key, String id, String query, String param) {
+        return shards.lookup(key, id, s -> doQuery(s, type, query, null, this::readMap, param), rows -> !rows.isEmpty());
+    }
+    
+    /**
+     * Runs the find by ids query on the shards the ids are routed to. When the database returns an id spelled
+     * differently than requested (e.g. a padded CHAR column or a case insensitive collation), the ids left unmatched
+     * are looked up one by one with the find by id query.
+     *
+     * @return the rows of each id in a single element list, an empty list when no shard holds it, null when a shard
+     * that may hold it failed
+     */
+    private Map<String, List<Map<String, String>>> findUsersByIds(List<String> ids) {
+        List<List<String>>                     partitions = shards.partition(ids);
+        Map<String, List<Map<String, String>>> results    = new HashMap<>();
+        Set<String>                            failed     = new HashSet<>();
+        boolean                                unmatched  = false;
+        for (int i = 0; i < partitions.size(); i++) {
+            List<String> shardIds = partitions.get(i);
+            if (shardIds.isEmpty()) {
+                continue;
+            }
+            List<Map<String, String>> shardRows = doQuery(shards.getShards().get(i), QueryType.LOGIN_LOOKUP, queryConfigurations.getFindByIds(shardIds.size()), null, this::readMap, shardIds.toArray());
+            if (shardRows == null) {
+                failed.addAll(shardIds);
+                continue;
+            }
+            for (Map<String, String> row : shardRows) {
+                results.put(row.get("id"), Collections.singletonList(row));
+                unmatched |= !shardIds.contains(row.get("id"));
+            }
+        }
+        for (String id : ids) {
+            if (!results.containsKey(id)) {
+                results.put(id, failed.contains(id) ? null
+                                : unmatched ? lookup(QueryType.LOGIN_LOOKUP, ID_KEY + id, id, queryConfigurations.getFindById(), id)
+                                : Collections.emptyList());
+            }
+        }
+        return results;
     }
     
     public Optional<Map<String, String>> findUserByUsername(String username) {
-        return Optional.ofNullable(doQuery(queryConfigurations.getFindByUsername(), null, this::readMap, username))
-                       .orElse(Collections.emptyList())
-                       .stream().findFirst();
+        if (!usernameFilter.mightExist(username)) {
+            return Optional.empty();
+        }
+        return userCache.get(USERNAME_KEY + username, u -> ID_KEY + u.get("id"),
+                             () -> indexed(lookup(QueryType.LOGIN_LOOKUP, USERNAME_KEY + username, null, queryConfigurations.getFindByUsername(), username), null));
+    }
+    
+    /**
+     * Uses the find by email query when configured, so email lookups get their own index and cache entries;
+     * otherwise the email is looked up as a username.
+     */
+    public Optional<Map<String, String>> findUserByEmail(String email) {
+        if (!queryConfigurations.hasFindByEmail()) {
+            return findUserByUsername(email);
+        }
+        if (!usernameFilter.mightExist(email)) {
+            return Optional.empty();
+        }
+        return userCache.get(EMAIL_KEY + email, u -> ID_KEY + u.get("id"),
+                             () -> indexed(lookup(QueryType.LOGIN_LOOKUP, EMAIL_KEY + email, null, queryConfigurations.getFindByEmail(), email), null));
+    }
+    
+    /**
+     * Keeps the search index and the username filter current with rows read by the lookups.
+     *
+     * @param id the id looked up, dropped from the index when no row is returned
+     */
+    private List<Map<String, String>> indexed(List<Map<String, String>> rows, String id) {
+        if (rows != null) {
+            if (rows.isEmpty()) {
+                searchIndex.remove(id);
+            } else {
+                searchIndex.upsert(rows.get(0));
+                usernameFilter.add(rows.get(0));
+            }
+        }
+        return rows;
+    }
+    
+    public UserCache getUserCache() {
+        return userCache;
+    }
+    
+    public PasswordVerificationExecutor getVerificationExecutor() {
+        return verificationExecutor;
+    }
+    
+    public UsernameFilter getUsernameFilter() {
+        return usernameFilter;
+    }
+    
+    public QueryTimeouts getQueryTimeouts() {
+        return queryTimeouts;
     }
     
     public List<Map<String, String>> findUsers(String search, PagingUtil.Pageable pageable) {
-        if (search == null || search.isEmpty()) {
-            return doQuery(queryConfigurations.getListAll(), pageable, this::readMap);
+        if (search != null && !search.isEmpty() && searchIndex.isReady()) {
+            return findIndexedUsers(searchIndex.search(search, pageable));
+        }
+        if (shards.isSharded()) {
+            return findUsersOnShards(search, pageable);
+        }
+        if (pageable != null && queryConfigurations.hasSeekColumn()) {
+            return findUsersWithSeek(search, pageable);
+        }
+        if (pageable != null && queryConfigurations.isPageWithTotalCount()) {
+            return findUsersWithTotalCount(search, pageable);
         }
-        return doQuery(queryConfigurations.getFindBySearchTerm(), pageable, this::readMap, search);
+        if (!isSearch(search)) {
+            return doQuery(firstShard(), QueryType.LISTING, queryConfigurations.getListAll(), pageable, this::readMap);
+        }
+        return doQuery(firstShard(), QueryType.SEARCH, queryConfigurations.getFindBySearchTerm(), pageable, this::readMap, searchParams(search));
     }
     
-    public boolean validateCredentials(String username, String password) {
-        String hash = Optional.ofNullable(doQuery(queryConfigurations.getFindPasswordHash(), null, this::readString, username)).orElse("");
-        if (queryConfigurations.isBlowfish()) {
-            return !hash.isEmpty() && BCrypt.verifyer().verify(password.toCharArray(), hash).verified;
+    /**
+     * The rows of the users found by the search index, in the index order; users no longer in the database are left
+     * out and dropped from the index.
+     */
+    private List<Map<String, String>> findIndexedUsers(List<String> ids) {
+        if (!queryConfigurations.hasFindByIds()) {
+            return ids.stream().map(this::findUserById).filter(Objects::nonNull).collect(Collectors.toList());
+        }
+        List<Map<String, String>> users = new ArrayList<>(ids.size());
+        int                       chunk = queryConfigurations.getRDBMS().getMaxParameters();
+        for (int from = 0; from < ids.size(); from += chunk) {
+            List<String>                           page = ids.subList(from, Math.min(from + chunk, ids.size()));
+            Map<String, List<Map<String, String>>> rows = findUsersByIds(page);
+            for (String id : page) {
+                if (rows.get(id) == null) {
+                    throw new DBUserStorageException("Could not load the users found by the search index");
+                }
+                users.addAll(indexed(rows.get(id), id));
+            }
+        }
+        return users;
+    }
+    
+    /**
+     * Scatter-gather listing: the page is cut from the merge of the first {@code firstResult + maxResults} rows of
+     * every shard, each kept in its database order.
+     */
+    private List<Map<String, String>> findUsersOnShards(String search, PagingUtil.Pageable pageable) {
+        boolean   searching = isSearch(search);
+        String    query     = searching ? queryConfigurations.getFindBySearchTerm() : queryConfigurations.getListAll();
+        Object[]  params    = searching ? searchParams(search) : new Object[0];
+        QueryType type      = searching ? QueryType.SEARCH : QueryType.LISTING;
+        String    column    = queryConfigurations.hasSeekColumn() ? queryConfigurations.getSeekColumn() : "username";
+        String    label     = queryConfigurations.hasSeekColumn() ? queryConfigurations.getSeekColumnLabel() : "username";
+        
+        boolean             paged        = pageable != null && pageable.getMaxResults() >= 0;
+        // the SPI passes -1 for "from the first row"
+        int                 first        = paged ? Math.max(pageable.getFirstResult(), 0) : 0;
+        int                 limit        = paged ? (int) Math.min((long) first + pageable.getMaxResults(), Integer.MAX_VALUE) : Integer.MAX_VALUE;
+        PagingUtil.Pageable shardPage    = paged ? new PagingUtil.Pageable(0, limit) : null;
+        String              orderedQuery = String.format("select * from (%s) shard_page order by %s", query, column);
+        List<List<KeyedRow>> shardRows = shards.scatter(s -> doQuery(s, type, orderedQuery, shardPage, rs -> readKeyed(rs, label), params));
+        if (shardRows.stream().allMatch(Objects::isNull)) {
+            return null;
+        }
+        List<Map<String, String>> users = merge(shardRows, limit);
+        return first == 0 ? users : new ArrayList<>(users.subList(Math.min(first, users.size()), users.size()));
+    }
+    
+    /**
+     * A row with the value of its ordering column, as the driver types it.
+     */
+    private static class KeyedRow {
+        private final Object              key;
+        private final Map<String, String> row;
+        
+        private KeyedRow(Object key, Map<String, String> row) {
+            this.key = key;
+            this.row = row;
+        }
+    }
+    
+    private static List<KeyedRow> readKeyed(ResultSet rs, String keyLabel) {
+        try {
+            List<KeyedRow> data   = new ArrayList<>();
+            RowSchema      schema = RowSchema.of(rs);
+            while (rs.next()) {
+                data.add(new KeyedRow(rs.getObject(keyLabel), schema.read(rs)));
+            }
+            return data;
+        } catch (Exception e) {
+            throw new DBUserStorageException(e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * K-way merge of the ordered shard lists (null for a failed shard), up to {@code limit} rows; equal keys are
+     * taken in shard order.
+     */
+    private static List<Map<String, String>> merge(List<List<KeyedRow>> shardRows, int limit) {
+        // {shard, position} of the next row of each shard
+        PriorityQueue<int[]> heads = new PriorityQueue<>((a, b) -> {
+            int byKey = compareKeys(shardRows.get(a[0]).get(a[1]).key, shardRows.get(b[0]).get(b[1]).key);
+            return byKey != 0 ? byKey : Integer.compare(a[0], b[0]);
+        });
+        for (int i = 0; i < shardRows.size(); i++) {
+            if (shardRows.get(i) != null && !shardRows.get(i).isEmpty()) {
+                heads.add(new int[]{i, 0});
+            }
+        }
+        List<Map<String, String>> users = new ArrayList<>();
+        while (!heads.isEmpty() && users.size() < limit) {
+            int[]          head = heads.poll();
+            List<KeyedRow> rows = shardRows.get(head[0]);
+            users.add(rows.get(head[1]).row);
+            if (++head[1] < rows.size()) {
+                heads.add(head);
+            }
+        }
+        return users;
+    }
+    
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static int compareKeys(Object a, Object b) {
+        if (a == null || b == null) {
+            return a == null ? (b == null ? 0 : 1) : -1;
+        }
+        if (a instanceof Number && b instanceof Number) {
+            return new BigDecimal(a.toString()).compareTo(new BigDecimal(b.toString()));
+        }
+        if (a instanceof Comparable && a.getClass() == b.getClass()) {
+            return ((Comparable) a).compareTo(b);
+        }
+        return a.toString().compareTo(b.toString());
+    }
+    
+    /**
+     * Fetches the page and the total count of the listing in one statement; the total then answers the count
+     * request the admin console sends for the same search.
+     */
+    private List<Map<String, String>> findUsersWithTotalCount(String search, PagingUtil.Pageable pageable) {
+        boolean   searching = isSearch(search);
+        String    query     = searching ? queryConfigurations.getFindBySearchTerm() : queryConfigurations.getListAll();
+        Object[]  params    = searching ? searchParams(search) : new Object[0];
+        QueryType type      = searching ? QueryType.SEARCH : QueryType.LISTING;
+        String    pageQuery = String.format("select count_page.*, count(*) over() as %s from (%s) count_page", TOTAL_COUNT_COLUMN, query);
+        
+        AtomicReference<Integer> total = new AtomicReference<>();
+        List<Map<String, String>> users = doQuery(firstShard(), type, pageQuery, pageable, rs -> {
+            try {
+                List<Map<String, String>> data   = new ArrayList<>();
+                RowSchema                 schema = RowSchema.of(rs, TOTAL_COUNT_COLUMN);
+                while (rs.next()) {
+                    if (total.get() == null) {
+                        total.set(rs.getInt(TOTAL_COUNT_COLUMN));
+                    }
+                    data.add(schema.read(rs));
+                }
+                return data;
+            } catch (SQLException e) {
+                throw new DBUserStorageException(e.getMessage(), e);
+            }
+        }, params);
+        if (total.get() != null) {
+            userCountCache.put(search, total.get());
+        } else if (users != null && Math.max(pageable.getFirstResult(), 0) == 0) {
+            userCountCache.put(search, 0);
+        }
+        return users;
+    }
+    
+    /**
+     * Keyset pagination: rows are ordered by the seek column and, when the key of the row preceding the requested
+     * offset is known from a previous page, the page starts with an index seek on that key instead of an OFFSET.
+     */
+    private List<Map<String, String>> findUsersWithSeek(String search, PagingUtil.Pageable pageable) {
+        boolean   searching = isSearch(search);
+        String    query     = searching ? queryConfigurations.getFindBySearchTerm() : queryConfigurations.getListAll();
+        Object[]  params    = searching ? searchParams(search) : new Object[0];
+        QueryType type      = searching ? QueryType.SEARCH : QueryType.LISTING;
+        String    column    = queryConfigurations.getSeekColumn();
+        // the SPI passes -1 for "from the first row"; cursors are filed under real offsets
+        if (pageable.getFirstResult() < 0) {
+            pageable = new PagingUtil.Pageable(0, pageable.getMaxResults());
+        }
+        
+        Object lastKey = pageable.getFirstResult() > 0 ? seekCursors.getIfPresent(seekCursorKey(search, pageable.getFirstResult())) : null;
+        AtomicReference<Object> pageLastKey = new AtomicReference<>();
+        List<Map<String, String>> users;
+        if (lastKey != null) {
+            String seekQuery = String.format("select * from (%s) seek_page where %s > ? order by %s", query, column, column);
+            Object[] seekParams = Arrays.copyOf(params, params.length + 1);
+            seekParams[params.length] = lastKey;
+            users = doQuery(firstShard(), type, seekQuery, new PagingUtil.Pageable(0, pageable.getMaxResults()), rs -> readMap(rs, pageLastKey), seekParams);
         } else {
-            String hashFunction = queryConfigurations.getHashFunction();
-
-            if(hashFunction.equals("PBKDF2-SHA256")){
-                String[] components = hash.split("\\$");
-                return new PBKDF2SHA256HashingUtil(password, components[2], Integer.valueOf(components[1])).validatePassword(components[3]);
+            String orderedQuery = String.format("select * from (%s) seek_page order by %s", query, column);
+            users = doQuery(firstShard(), type, orderedQuery, pageable, rs -> readMap(rs, pageLastKey), params);
+        }
+        if (users != null && !users.isEmpty() && pageLastKey.get() != null) {
+            seekCursors.put(seekCursorKey(search, pageable.getFirstResult() + users.size()), pageLastKey.get());
+        }
+        return users;
+    }
+    
+    private static String seekCursorKey(String search, int offset) {
+        return (search == null ? "" : search) + '|' + offset;
+    }
+    
+    /**
+     * Whether the search query applies; a term with nothing a full-text index can match lists every user.
+     */
+    private boolean isSearch(String search) {
+        return search != null && !search.isEmpty() && searchTerm(search) != null;
+    }
+    
+    private String searchTerm(String search) {
+        return queryConfigurations.isFullTextSearch() ? queryConfigurations.getRDBMS().fullTextTerm(search) : search;
+    }
+    
+    /**
+     * The search term, in the database full-text syntax when enabled, is bound to every placeholder of the search query.
+     */
+    private Object[] searchParams(String search) {
+        Object[] params = new Object[Math.max(PagingUtil.countParameters(queryConfigurations.getFindBySearchTerm()), 1)];
+        Arrays.fill(params, searchTerm(search));
+        return params;
+    }
+    
+    /**
+     * Lazily streams every user (or every user matching the search term) a page of {@code fetchSize} rows at a time,
+     * each page read by its own query, so a caller that stops early holds no connection.
+     */
+    public Stream<Map<String, String>> streamUsers(String search) {
+        return StreamSupport.stream(new PageSpliterator(search, Math.max(queryConfigurations.getFetchSize(), 1)), false);
+    }
+    
+    private class PageSpliterator extends Spliterators.AbstractSpliterator<Map<String, String>> {
+        
+        private final String                        search;
+        private final int                           pageSize;
+        private       Iterator<Map<String, String>> page = Collections.emptyIterator();
+        private       int                           offset;
+        private       boolean                       last;
+        
+        private PageSpliterator(String search, int pageSize) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+            this.search = search;
+            this.pageSize = pageSize;
+        }
+        
+        @Override
+        public boolean tryAdvance(Consumer<? super Map<String, String>> action) {
+            if (!page.hasNext() && !last) {
+                List<Map<String, String>> rows = findUsers(search, new PagingUtil.Pageable(offset, pageSize));
+                if (rows == null && offset > 0) {
+                    throw new DBUserStorageException("Could not read the users after row " + offset);
+                }
+                rows = rows == null ? Collections.emptyList() : rows;
+                page = rows.iterator();
+                offset += rows.size();
+                last = rows.size() < pageSize;
             }
-
-            MessageDigest digest   = DigestUtils.getDigest(hashFunction);
-            byte[]        pwdBytes = StringUtils.getBytesUtf8(password);
-            return Objects.equals(Hex.encodeHexString(digest.digest(pwdBytes)), hash);
+            if (!page.hasNext()) {
+                return false;
+            }
+            action.accept(page.next());
+            return true;
+        }
+    }
+    
+    /**
+     * Streams every user (or every user matching the search term) from one open result set per shard, reading
+     * {@code fetchSize} rows per round trip, for the background index builds. The connection is released when the last
+     * row is read or when the stream is closed, so the stream must be closed.
+     */
+    private Stream<Map<String, String>> openUserStream(String search) throws SQLException {
+        if (!shards.isSharded()) {
+            return openUserStream(firstShard(), search);
+        }
+        return shards.getShards().stream().flatMap(s -> {
+            try {
+                return openUserStream(s, search);
+            } catch (SQLException e) {
+                throw new DBUserStorageException(e.getMessage(), e);
+            }
+        });
+    }
+    
+    private Stream<Map<String, String>> openUserStream(DataSourceProvider shard, String search) throws SQLException {
+        Bulkhead.Permit permit = shard.getBulkhead().acquire(QueryType.LISTING.getLane(), 0);
+        if (permit == null) {
+            throw new SQLException("Connection lane is full");
+        }
+        CircuitBreaker circuitBreaker = shard.getCircuitBreaker();
+        long           call           = circuitBreaker.tryAcquire();
+        if (call == CircuitBreaker.REJECTED) {
+            permit.close();
+            throw new SQLException("Circuit breaker is open");
+        }
+        long start = System.nanoTime();
+        boolean  searching = isSearch(search);
+        String   query     = searching ? queryConfigurations.getFindBySearchTerm() : queryConfigurations.getListAll();
+        Object[] params    = searching ? searchParams(search) : new Object[0];
+        Connection        c         = null;
+        PreparedStatement statement = null;
+        try {
+            c = shard.getReadConnection();
+            // PostgreSQL only honours the fetch size inside a transaction; the pool restores auto-commit on release
+            c.setAutoCommit(false);
+            log.infov("Query: {0} params: {1} ", query, Arrays.toString(params));
+            statement = c.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            // MySQL Connector/J only streams rows with Integer.MIN_VALUE
+            statement.setFetchSize(queryConfigurations.getRDBMS() == RDBMS.MYSQL ? Integer.MIN_VALUE : queryConfigurations.getFetchSize());
+            for (int i = 1; i <= params.length; i++) {
+                statement.setObject(i, params[i - 1]);
+            }
+            ResultSetSpliterator spliterator = new ResultSetSpliterator(permit, c, statement, statement.executeQuery());
+            // only opening the stream is timed; reading it takes as long as the caller wants
+            circuitBreaker.record(call, true, System.nanoTime() - start);
+            return StreamSupport.stream(spliterator, false).onClose(spliterator::close);
+        } catch (SQLException e) {
+            circuitBreaker.record(call, false, System.nanoTime() - start);
+            closeQuietly(statement);
+            closeQuietly(c);
+            permit.close();
+            throw e;
         }
     }
     
+    private static void closeQuietly(AutoCloseable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (Exception e) {
+                log.warn(e.getMessage(), e);
+            }
+        }
+    }
+    
+    private static class ResultSetSpliterator extends Spliterators.AbstractSpliterator<Map<String, String>> {
+        
+        private final Bulkhead.Permit   permit;
+        private final Connection        connection;
+        private final PreparedStatement statement;
+        private final ResultSet         rs;
+        private       RowSchema         schema;
+        private       boolean           closed;
+        
+        private ResultSetSpliterator(Bulkhead.Permit permit, Connection connection, PreparedStatement statement, ResultSet rs) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+            this.permit = permit;
+            this.connection = connection;
+            this.statement = statement;
+            this.rs = rs;
+        }
+        
+        @Override
+        public boolean tryAdvance(Consumer<? super Map<String, String>> action) {
+            if (closed) {
+                return false;
+            }
+            try {
+                if (schema == null) {
+                    schema = RowSchema.of(rs);
+                }
+                if (!rs.next()) {
+                    close();
+                    return false;
+                }
+                action.accept(schema.read(rs));
+                return true;
+            } catch (SQLException e) {
+                close();
+                throw new DBUserStorageException(e.getMessage(), e);
+            }
+        }
+        
+        private void close() {
+            if (!closed) {
+                closed = true;
+                closeQuietly(rs);
+                closeQuietly(statement);
+                closeQuietly(connection);
+                permit.close();
+            }
+        }
+    }
+    
+    /**
+     * Profile attributes not returned by the identity queries; an empty map when the user has none or the query fails.
+     */
+    public Map<String, String> findAttributesById(String id) {
+        return Optional.ofNullable(lookup(QueryType.LOGIN_LOOKUP, ID_KEY + id, id, queryConfigurations.getFindAttributesById(), id))
+                       .orElse(Collections.emptyList())
+                       .stream().findFirst().orElse(Collections.emptyMap());
+    }
+    
+    /**
+     * @throws DBUserStorageException when the shard that may hold the user could not be queried, so a failure is not
+     *                                taken for a missing user
+     */
+    public Optional<Map<String, String>> findUserWithPasswordHash(String id) {
+        List<Map<String, String>> rows = lookup(QueryType.HASH_FETCH, ID_KEY + id, id, queryConfigurations.getFindUserWithPasswordHash(), id);
+        if (rows == null) {
+            throw new DBUserStorageException("Could not fetch the password hash of user " + id);
+        }
+        return rows.stream().findFirst();
+    }
+    
+    public static Map<String, String> withoutPasswordHash(Map<String, String> userWithPasswordHash) {
+        Map<String, String> user = new HashMap<>(userWithPasswordHash);
+        user.keySet().removeIf(PASSWORD_HASH_COLUMN::equalsIgnoreCase);
+        return user;
+    }
+    
+    /**
+     * @throws DBUserStorageException when the shard that may hold the user could not be queried
+     */
+    public boolean validateCredentials(String username, String password) {
+        Optional<String> hash = shards.lookup(USERNAME_KEY + username, null,
+                                              s -> doQuery(s, QueryType.HASH_FETCH, queryConfigurations.getFindPasswordHash(), null,
+                                                           rs -> Optional.ofNullable(readString(rs)), username),
+                                              Optional::isPresent);
+        if (hash == null) {
+            throw new DBUserStorageException("Could not fetch the password hash of user " + username);
+        }
+        return verifyPassword(username, hash.orElse(""), password);
+    }
+    
+    public boolean validateCredentials(Map<String, String> userWithPasswordHash, String password) {
+        String hash = userWithPasswordHash.entrySet().stream()
+                                          .filter(e -> PASSWORD_HASH_COLUMN.equalsIgnoreCase(e.getKey()))
+                                          .map(Map.Entry::getValue)
+                                          .filter(Objects::nonNull)
+                                          .findFirst().orElse("");
+        return verifyPassword(userWithPasswordHash.get("username"), hash, password);
+    }
+    
+    private boolean verifyPassword(String username, String hash, String password) {
+        return verifiedCredentialCache.verify(username, hash, password,
+                                              () -> verificationExecutor.verify(() -> passwordVerifier.verify(password, hash)));
+    }
+    
     public boolean updateCredentials(String username, String password) {
         throw new NotImplementedException("Password update not supported");
     }
@@ -166,4 +797,16 @@ public class UserRepository {
     public boolean removeUser() {
         return queryConfigurations.getAllowKeycloakDelete();
     }
+    
+    /**
+     * Stops the background threads owned by this repository; the data source is closed by its own provider.
+     */
+    @Override
+    public void close() {
+        verificationExecutor.close();
+        userCountCache.close();
+        searchIndex.close();
+        usernameFilter.close();
+        shards.close();
+    }
 }
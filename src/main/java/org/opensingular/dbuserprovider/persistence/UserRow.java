@@ -0,0 +1,70 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Read-only {@link Map} view of one user row: the values are a flat array indexed by column position and the
+ * labels come from the shared {@link RowSchema}.
+ */
+public final class UserRow extends AbstractMap<String, String> {
+
+    private final RowSchema schema;
+    private final String[]  values;
+
+    UserRow(RowSchema schema, String[] values) {
+        this.schema = schema;
+        this.values = values;
+    }
+
+    @Override
+    public String get(Object key) {
+        int position = schema.position(key);
+        return position < 0 ? null : values[position];
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return schema.position(key) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return values.length;
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        return new AbstractSet<Entry<String, String>>() {
+            @Override
+            public Iterator<Entry<String, String>> iterator() {
+                return new Iterator<Entry<String, String>>() {
+                    private int position;
+
+                    @Override
+                    public boolean hasNext() {
+                        return position < values.length;
+                    }
+
+                    @Override
+                    public Entry<String, String> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        int current = position++;
+                        return new SimpleImmutableEntry<>(schema.label(current), values[current]);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return values.length;
+            }
+        };
+    }
+}
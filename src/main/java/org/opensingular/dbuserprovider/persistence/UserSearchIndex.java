@@ -0,0 +1,377 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import lombok.extern.jbosslog.JBossLog;
+import org.opensingular.dbuserprovider.util.DaemonThreadFactory;
+import org.opensingular.dbuserprovider.util.PagingUtil;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * In-memory case insensitive substring index over a few user columns, answering searches and search counts with
+ * user ids instead of running the leading-wildcard LIKE scan of the search query.
+ */
+@JBossLog
+public class UserSearchIndex implements Closeable {
+
+    private static final int               GRAM           = 3;
+    private static final char              SEPARATOR      = '\n';
+    // upserts are folded into a new snapshot once there are that many
+    private static final int               FOLD_THRESHOLD = 1000;
+    private static final Comparator<Entry> ORDER          =
+            Comparator.comparing((Entry e) -> e.username, Comparator.nullsLast(Comparator.naturalOrder()))
+                      .thenComparing(e -> e.id, Comparator.nullsLast(Comparator.naturalOrder()));
+
+    private final    boolean                  enabled;
+    private final    List<String>             columns;
+    private final    long                     refreshSeconds;
+    private final    ScheduledExecutorService executor;
+    // entries read since the last build or fold, by id; they shadow the snapshot entry of the same id
+    private final    Map<String, Upsert>      upserts = new ConcurrentHashMap<>();
+    private final    AtomicBoolean            folding = new AtomicBoolean();
+    private volatile Snapshot                 snapshot;
+
+    private static class Entry {
+        private final String   id;
+        // lower case username, the result order
+        private final String   username;
+        // lower case value of each indexed column, null when the row has none
+        private final String[] values;
+        private final String   text;
+
+        private Entry(String id, String username, String[] values) {
+            this.id = id;
+            this.username = username;
+            this.values = values;
+            StringBuilder text = new StringBuilder();
+            for (String value : values) {
+                if (value != null) {
+                    text.append(value).append(SEPARATOR);
+                }
+            }
+            this.text = text.toString();
+        }
+    }
+
+    private static class Snapshot {
+        // in result order
+        private final Entry[]              entries;
+        // trigram -> ascending entry positions
+        private final Map<String, int[]>   grams;
+        // user id -> position
+        private final Map<String, Integer> positions;
+
+        private Snapshot(Entry[] entries, Map<String, int[]> grams) {
+            this.entries = entries;
+            this.grams = grams;
+            this.positions = new HashMap<>(entries.length * 2);
+            for (int i = 0; i < entries.length; i++) {
+                positions.put(entries[i].id, i);
+            }
+        }
+    }
+
+    private static class Upsert {
+        // null when the user no longer exists
+        private final Entry entry;
+        private final long  at = System.currentTimeMillis();
+
+        private Upsert(Entry entry) {
+            this.entry = entry;
+        }
+    }
+
+    /**
+     * @param columns comma separated row labels to index; an empty value disables the index
+     */
+    public UserSearchIndex(String name, String columns, long refreshSeconds) {
+        this.columns = Arrays.stream(String.valueOf(columns == null ? "" : columns).split(","))
+                             .map(String::trim)
+                             .filter(s -> !s.isEmpty())
+                             .collect(Collectors.toList());
+        this.enabled = !this.columns.isEmpty();
+        this.refreshSeconds = refreshSeconds;
+        this.executor = enabled ? Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory(name, "search-index")) : null;
+    }
+
+    /**
+     * Builds the index in the background now and then every {@code refreshSeconds}, if set.
+     *
+     * @param source streams every user; the stream is closed after each build
+     */
+    public void start(Supplier<Stream<Map<String, String>>> source) {
+        if (!enabled) {
+            return;
+        }
+        Runnable rebuild = () -> {
+            try {
+                rebuild(source);
+            } catch (Exception e) {
+                log.errorv(e, "User search index build failed: columns={0}", columns);
+            }
+        };
+        if (refreshSeconds > 0) {
+            executor.scheduleWithFixedDelay(rebuild, 0, refreshSeconds, TimeUnit.SECONDS);
+        } else {
+            executor.execute(rebuild);
+        }
+    }
+
+    private void rebuild(Supplier<Stream<Map<String, String>>> source) {
+        long        start = System.currentTimeMillis();
+        List<Entry> entries;
+        try (Stream<Map<String, String>> stream = source.get()) {
+            entries = stream.map(u -> entry(u, null)).collect(Collectors.toList());
+        }
+        Snapshot built = build(entries);
+        snapshot = built;
+        // upserts older than the build are part of the new snapshot
+        upserts.values().removeIf(u -> u.at < start);
+        log.infov("User search index built: users={0} grams={1} took={2}ms", built.entries.length, built.grams.size(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Replaces the snapshot with one holding the current upserts, without reading the database.
+     */
+    private void fold() {
+        Snapshot s = snapshot;
+        if (s == null) {
+            return;
+        }
+        Map<String, Upsert> folded  = new HashMap<>(upserts);
+        List<Entry>         entries = new ArrayList<>(s.entries.length + folded.size());
+        for (Entry entry : s.entries) {
+            if (!folded.containsKey(entry.id)) {
+                entries.add(entry);
+            }
+        }
+        folded.values().stream().map(u -> u.entry).filter(Objects::nonNull).forEach(entries::add);
+        snapshot = build(entries);
+        // an upsert replaced meanwhile is newer than the folded one and stays
+        folded.forEach(upserts::remove);
+    }
+
+    private static Snapshot build(List<Entry> entries) {
+        Entry[] sorted = entries.toArray(new Entry[0]);
+        Arrays.sort(sorted, ORDER);
+        Map<String, IntList> postings = new HashMap<>();
+        for (int i = 0; i < sorted.length; i++) {
+            for (String gram : grams(sorted[i].text)) {
+                postings.computeIfAbsent(gram, g -> new IntList()).addIfLast(i);
+            }
+        }
+        Map<String, int[]> grams = new HashMap<>(postings.size() * 2);
+        postings.forEach((gram, list) -> grams.put(gram, list.toArray()));
+        return new Snapshot(sorted, grams);
+    }
+
+    public boolean isReady() {
+        return snapshot != null;
+    }
+
+    /**
+     * Indexes a user row freshly read from the database. Indexed columns missing from the row (e.g. lazily loaded
+     * attributes) keep their indexed value; a row missing some for a user not indexed yet is left for the next build.
+     */
+    public void upsert(Map<String, String> user) {
+        if (!enabled || user == null || user.get("id") == null) {
+            return;
+        }
+        Entry previous = null;
+        if (!user.keySet().containsAll(columns)) {
+            Snapshot s        = snapshot;
+            Integer  position = s != null ? s.positions.get(user.get("id")) : null;
+            if (position == null) {
+                return;
+            }
+            previous = s.entries[position];
+        }
+        put(user.get("id"), new Upsert(entry(user, previous)));
+    }
+
+    /**
+     * Drops a user the database no longer returns.
+     */
+    public void remove(String id) {
+        if (enabled && id != null) {
+            put(id, new Upsert(null));
+        }
+    }
+
+    private void put(String id, Upsert upsert) {
+        upserts.put(id, upsert);
+        if (upserts.size() >= FOLD_THRESHOLD && folding.compareAndSet(false, true)) {
+            try {
+                executor.execute(() -> {
+                    try {
+                        fold();
+                    } finally {
+                        folding.set(false);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                folding.set(false);
+            }
+        }
+    }
+
+    /**
+     * @return the ids of the matching users, ordered by username then id
+     */
+    public List<String> search(String search, PagingUtil.Pageable pageable) {
+        List<Entry> entries = matches(search);
+        int         from    = 0;
+        int         to      = entries.size();
+        if (pageable != null) {
+            from = Math.min(Math.max(pageable.getFirstResult(), 0), entries.size());
+            to = pageable.getMaxResults() >= 0 ? (int) Math.min((long) from + pageable.getMaxResults(), entries.size()) : entries.size();
+        }
+        return entries.subList(from, to).stream().map(e -> e.id).collect(Collectors.toList());
+    }
+
+    public int count(String search) {
+        return matches(search).size();
+    }
+
+    private List<Entry> matches(String search) {
+        Snapshot    s          = snapshot;
+        String      term       = normalize(search);
+        int[]       candidates = candidates(s, term);
+        int         size       = candidates == null ? s.entries.length : candidates.length;
+        List<Entry> result     = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            Entry entry = s.entries[candidates == null ? i : candidates[i]];
+            if (!upserts.containsKey(entry.id) && entry.text.contains(term)) {
+                result.add(entry);
+            }
+        }
+        boolean upserted = false;
+        for (Upsert upsert : upserts.values()) {
+            if (upsert.entry != null && upsert.entry.text.contains(term)) {
+                result.add(upsert.entry);
+                upserted = true;
+            }
+        }
+        if (upserted) {
+            // the snapshot entries are already in order, so this only places the upserted ones
+            result.sort(ORDER);
+        }
+        return result;
+    }
+
+    /**
+     * Entry positions containing every trigram of the term, or null when the term is too short to use the grams.
+     */
+    private static int[] candidates(Snapshot s, String term) {
+        if (term.length() < GRAM) {
+            return null;
+        }
+        List<int[]> lists = new ArrayList<>();
+        for (String gram : grams(term)) {
+            int[] list = s.grams.get(gram);
+            if (list == null) {
+                return new int[0];
+            }
+            lists.add(list);
+        }
+        lists.sort(Comparator.comparingInt(l -> l.length));
+        int[] result = lists.get(0);
+        for (int i = 1; i < lists.size() && result.length > 0; i++) {
+            result = intersect(result, lists.get(i));
+        }
+        return result;
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int   n      = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] == b[j]) {
+                result[n++] = a[i];
+                i++;
+                j++;
+            } else if (a[i] < b[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    /**
+     * @param previous the indexed entry of the user, supplying the columns the row lacks
+     */
+    private Entry entry(Map<String, String> user, Entry previous) {
+        String[] values = new String[columns.size()];
+        for (int i = 0; i < values.length; i++) {
+            String column = columns.get(i);
+            values[i] = previous != null && !user.containsKey(column) ? previous.values[i] : lowerCase(user.get(column));
+        }
+        return new Entry(user.get("id"), lowerCase(user.get("username")), values);
+    }
+
+    private static String lowerCase(String value) {
+        return value == null ? null : value.toLowerCase(Locale.ROOT);
+    }
+
+    private static List<String> grams(String text) {
+        List<String> grams = new ArrayList<>();
+        for (int i = 0; i + GRAM <= text.length(); i++) {
+            String gram = text.substring(i, i + GRAM);
+            if (gram.indexOf(SEPARATOR) < 0) {
+                grams.add(gram);
+            }
+        }
+        return grams;
+    }
+
+    /**
+     * Lower case, without the '*' / '%' wildcards users type in the admin console: every search is a substring search.
+     */
+    private static String normalize(String search) {
+        return search.replace("*", "").replace("%", "").trim().toLowerCase(Locale.ROOT);
+    }
+
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private static class IntList {
+        private int[] values = new int[4];
+        private int   size;
+
+        private void addIfLast(int value) {
+            if (size > 0 && values[size - 1] == value) {
+                return;
+            }
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        private int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import lombok.extern.jbosslog.JBossLog;
+import org.opensingular.dbuserprovider.util.DaemonThreadFactory;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Bloom filter over every username and email, so lookups of names that do not exist (mostly credential stuffing)
+ * are answered without a query.
+ */
+@JBossLog
+public class UsernameFilter implements Closeable {
+
+    private final    boolean                  enabled;
+    private final    double                   fpp;
+    private final    long                     refreshSeconds;
+    private final    ScheduledExecutorService executor;
+    private final    LongAdder                rejected = new LongAdder();
+    private final    LongAdder                passed   = new LongAdder();
+    private volatile BloomFilter<String>      filter;
+    private volatile long                     expectedInsertions;
+    private volatile long                     lastInsertions;
+
+    public UsernameFilter(String name, boolean enabled, double fpp, long refreshSeconds) {
+        this.enabled = enabled && fpp > 0 && fpp < 1;
+        this.fpp = fpp;
+        this.refreshSeconds = refreshSeconds;
+        this.executor = this.enabled ? Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory(name, "username-filter")) : null;
+    }
+
+    /**
+     * Fills the filter in the background, sized from the user count; users created by another application are only
+     * seen after the next rebuild.
+     *
+     * @param userCount counts the users, null when the count fails
+     * @param source    streams every user; the stream is closed after each build
+     */
+    public void start(Supplier<Integer> userCount, Supplier<Stream<Map<String, String>>> source) {
+        if (!enabled) {
+            return;
+        }
+        Runnable rebuild = () -> {
+            try {
+                rebuild(userCount, source);
+            } catch (Exception e) {
+                log.errorv(e, "Username filter build failed");
+            }
+        };
+        if (refreshSeconds > 0) {
+            executor.scheduleWithFixedDelay(rebuild, 0, refreshSeconds, TimeUnit.SECONDS);
+        } else {
+            executor.execute(rebuild);
+        }
+    }
+
+    /**
+     * Names are put into the new filter as they are streamed, so a rebuild holds no copy of them.
+     */
+    private void rebuild(Supplier<Integer> userCount, Supplier<Stream<Map<String, String>>> source) {
+        long    start = System.currentTimeMillis();
+        Integer users = userCount.get();
+        // a username and an email per user, or the size of the previous build when the count fails; with headroom
+        // for the users added between rebuilds
+        long                names     = users != null ? 2L * users : lastInsertions;
+        long                expected  = Math.max(names + names / 10, 1000);
+        BloomFilter<String> newFilter = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), expected, fpp);
+        LongAdder           inserted  = new LongAdder();
+        try (Stream<Map<String, String>> stream = source.get()) {
+            stream.forEach(user -> {
+                putInto(newFilter, inserted, user.get("username"));
+                putInto(newFilter, inserted, user.get("email"));
+            });
+        }
+        expectedInsertions = expected;
+        lastInsertions = inserted.sum();
+        filter = newFilter;
+        log.infov("Username filter built: names={0} expected={1} fpp={2} memory={3}KB took={4}ms",
+                  inserted.sum(), expected, fpp, getMemoryBytes() / 1024, System.currentTimeMillis() - start);
+    }
+
+    private static void putInto(BloomFilter<String> filter, LongAdder inserted, String name) {
+        if (name != null && !name.isEmpty()) {
+            filter.put(name.toLowerCase(Locale.ROOT));
+            inserted.increment();
+        }
+    }
+
+    public boolean isReady() {
+        return filter != null;
+    }
+
+    /**
+     * @return false only when the username or email is certainly not in the database (as of the last build)
+     */
+    public boolean mightExist(String name) {
+        BloomFilter<String> f = filter;
+        if (f == null || name == null) {
+            return true;
+        }
+        boolean result = f.mightContain(name.toLowerCase(Locale.ROOT));
+        (result ? passed : rejected).increment();
+        return result;
+    }
+
+    /**
+     * Adds the username and email of a user row freshly read from the database.
+     */
+    public void add(Map<String, String> user) {
+        BloomFilter<String> f = filter;
+        if (f == null || user == null) {
+            return;
+        }
+        // puts are not thread safe in this Guava version; concurrent readers at worst miss a bit being set
+        synchronized (f) {
+            for (String name : new String[]{user.get("username"), user.get("email")}) {
+                if (name != null && !name.isEmpty()) {
+                    f.put(name.toLowerCase(Locale.ROOT));
+                }
+            }
+        }
+    }
+
+    /**
+     * Size of the bit array for the current build: -n ln(p) / ln(2)^2 bits.
+     */
+    public long getMemoryBytes() {
+        return (long) (-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)) / 8);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("UsernameFilter{ready=%s, rejected=%d, passed=%d, fpp=%s, memoryKB=%d}",
+                             isReady(), rejected.sum(), passed.sum(), fpp, getMemoryBytes() / 1024);
+    }
+
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+}
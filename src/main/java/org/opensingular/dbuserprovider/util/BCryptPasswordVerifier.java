@@ -0,0 +1,13 @@
+package org.opensingular.dbuserprovider.util;
+
+import at.favre.lib.crypto.bcrypt.BCrypt;
+
+public class BCryptPasswordVerifier implements PasswordVerifier {
+
+    private final BCrypt.Verifyer verifyer = BCrypt.verifyer();
+
+    @Override
+    public boolean verify(String password, String hash) {
+        return hash != null && !hash.isEmpty() && verifyer.verify(password.toCharArray(), hash).verified;
+    }
+}
@@ -0,0 +1,24 @@
+package org.opensingular.dbuserprovider.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Daemon threads named after the provider component and their role, e.g. SINGULAR-USER-PROVIDER-users-verify-1.
+ */
+public class DaemonThreadFactory implements ThreadFactory {
+
+    private final String        prefix;
+    private final AtomicInteger count = new AtomicInteger();
+
+    public DaemonThreadFactory(String name, String role) {
+        this.prefix = "SINGULAR-USER-PROVIDER-" + name + "-" + role + "-";
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, prefix + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    }
+}
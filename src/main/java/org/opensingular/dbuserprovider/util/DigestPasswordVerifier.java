@@ -0,0 +1,113 @@
+package org.opensingular.dbuserprovider.util;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Compares the hex encoded digest (md*, sha*) of the password with the stored hash, in constant time, reusing a
+ * digest and work buffers per thread.
+ */
+public class DigestPasswordVerifier implements PasswordVerifier {
+
+    private final ThreadLocal<MessageDigest> digest;
+    private final ThreadLocal<byte[][]>      buffers;
+    private final int                        digestLength;
+
+    public DigestPasswordVerifier(String algorithm) {
+        // fails fast on an unknown algorithm
+        this.digestLength = DigestUtils.getDigest(algorithm).getDigestLength();
+        this.digest = ThreadLocal.withInitial(() -> DigestUtils.getDigest(algorithm));
+        this.buffers = ThreadLocal.withInitial(() -> new byte[][]{new byte[64], new byte[digestLength]});
+    }
+
+    @Override
+    public boolean verify(String password, String hash) {
+        if (hash == null || hash.length() != digestLength * 2) {
+            return false;
+        }
+        byte[][] buf      = buffers.get();
+        byte[]   pwdBytes = ensureCapacity(buf, password.length() * 3);
+        int      length   = encodeUtf8(password, pwdBytes);
+        try {
+            MessageDigest md = digest.get();
+            md.reset();
+            md.update(pwdBytes, 0, length);
+            md.digest(buf[1], 0, digestLength);
+            return hexEquals(buf[1], hash);
+        } catch (DigestException e) {
+            return false;
+        } finally {
+            Arrays.fill(pwdBytes, 0, length, (byte) 0);
+        }
+    }
+
+    private static byte[] ensureCapacity(byte[][] buf, int size) {
+        if (buf[0].length < size) {
+            buf[0] = new byte[size];
+        }
+        return buf[0];
+    }
+
+    /**
+     * Same bytes as {@code String.getBytes(UTF_8)}, written into the given buffer (at least 3 bytes per char).
+     */
+    static int encodeUtf8(String s, byte[] out) {
+        int pos = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                out[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                out[pos++] = (byte) (0xC0 | (c >> 6));
+                out[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                out[pos++] = (byte) (0xF0 | (cp >> 18));
+                out[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                out[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                out[pos++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogate, encoded as '?' like the JDK encoder
+                out[pos++] = (byte) '?';
+            } else {
+                out[pos++] = (byte) (0xE0 | (c >> 12));
+                out[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                out[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * Constant time comparison of raw digest bytes with an ASCII hex string (either case) of the same length.
+     */
+    static boolean hexEquals(byte[] bytes, String hex) {
+        int diff = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            int hi = hexDigit(hex.charAt(2 * i));
+            int lo = hexDigit(hex.charAt(2 * i + 1));
+            // an invalid digit is 0x100, out of the byte range
+            diff |= ((hi << 4) | lo | (hi | lo) & 0x100) ^ (bytes[i] & 0xFF);
+        }
+        return diff == 0;
+    }
+
+    /**
+     * Value of [0-9a-fA-F] only; Character.digit also accepts non-ASCII digits.
+     */
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return 0x100;
+    }
+}
@@ -0,0 +1,60 @@
+package org.opensingular.dbuserprovider.util;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Base64;
+
+/**
+ * Verifies hashes stored as {@code algorithm$iterations$salt$base64Hash} (Django style) with PBKDF2WithHmacSHA256.
+ */
+public class PBKDF2SHA256PasswordVerifier implements PasswordVerifier {
+
+    private static final String ALGORITHM  = "PBKDF2WithHmacSHA256";
+    private static final int    KEY_LENGTH = 256;
+
+    private final ThreadLocal<SecretKeyFactory> keyFactory = ThreadLocal.withInitial(PBKDF2SHA256PasswordVerifier::newKeyFactory);
+
+    public PBKDF2SHA256PasswordVerifier() {
+        // fails fast when the JVM has no PBKDF2 support
+        newKeyFactory();
+    }
+
+    private static SecretKeyFactory newKeyFactory() {
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public boolean verify(String password, String hash) {
+        if (hash == null) {
+            return false;
+        }
+        int iterationsStart = hash.indexOf('$') + 1;
+        int saltStart       = hash.indexOf('$', iterationsStart) + 1;
+        int hashStart       = hash.indexOf('$', saltStart) + 1;
+        if (iterationsStart == 0 || saltStart == 0 || hashStart == 0) {
+            return false;
+        }
+        PBEKeySpec spec = null;
+        try {
+            int    iterations = Integer.parseInt(hash.substring(iterationsStart, saltStart - 1));
+            byte[] salt       = hash.substring(saltStart, hashStart - 1).getBytes(StandardCharsets.UTF_8);
+            byte[] expected   = Base64.getDecoder().decode(hash.substring(hashStart));
+            spec = new PBEKeySpec(password.toCharArray(), salt, iterations, KEY_LENGTH);
+            return MessageDigest.isEqual(expected, keyFactory.get().generateSecret(spec).getEncoded());
+        } catch (IllegalArgumentException | InvalidKeySpecException e) {
+            return false;
+        } finally {
+            if (spec != null) {
+                spec.clearPassword();
+            }
+        }
+    }
+}
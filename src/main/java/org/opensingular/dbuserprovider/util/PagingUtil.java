@@ -1,20 +1,22 @@
 package org.opensingular.dbuserprovider.util;
 
-import org.hibernate.dialect.Dialect;
+import org.hibernate.dialect.pagination.AbstractLimitHandler;
 import org.hibernate.dialect.pagination.LimitHandler;
 import org.hibernate.engine.spi.RowSelection;
-import org.opensingular.dbuserprovider.DBUserStorageException;
 import org.opensingular.dbuserprovider.persistence.RDBMS;
 
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
-import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class PagingUtil {
 
-    @SuppressWarnings("RegExpRedundantEscape")
-    private static final Pattern SINGLE_QUESTION_MARK_REGEX = Pattern.compile("(^|[^\\?])(\\?)([^\\?]|$)");
+    /**
+     * Paged SQL per (RDBMS, offset/limit shape, query). Offset and limit are bound as parameters, so every page of a
+     * listing reuses the same statement and the server side plan.
+     */
+    private static final ConcurrentMap<String, PagedQuery> PAGED_QUERIES = new ConcurrentHashMap<>();
 
 
     public static class Pageable {
@@ -25,50 +27,90 @@ public class PagingUtil {
             this.firstResult = firstResult;
             this.maxResults = maxResults;
         }
-    }
 
-    public static String formatScriptWithPageable(String query, Pageable pageable, RDBMS RDBMS) {
+        public int getFirstResult() {
+            return firstResult;
+        }
 
-        final Dialect dialect = RDBMS.getDialect();
+        public int getMaxResults() {
+            return maxResults;
+        }
 
-        RowSelection rowSelection = new RowSelection();
-        rowSelection.setFetchSize(pageable.maxResults);
-        rowSelection.setFirstRow(pageable.firstResult);
-        rowSelection.setMaxRows(pageable.maxResults);
+        private RowSelection toRowSelection() {
+            RowSelection rowSelection = new RowSelection();
+            rowSelection.setFetchSize(maxResults);
+            rowSelection.setFirstRow(firstResult);
+            rowSelection.setMaxRows(maxResults);
+            return rowSelection;
+        }
+    }
 
-        String escapedSQL = escapeQuestionMarks(query);
+    public static class PagedQuery {
+        // some limit handlers (e.g. SQL Server) keep state from processSql that their bind methods read
+        private final LimitHandler limitHandler;
+        private final String       sql;
+        private final int          parameterCount;
 
-        StringBuilder processedSQL;
-        try {
-            LimitHandler limitHandler = dialect.getLimitHandler();
-            processedSQL = new StringBuilder(limitHandler.processSql(escapedSQL, rowSelection));
-            int                                 col       = 1;
-            PreparedStatementParameterCollector collector = new PreparedStatementParameterCollector();
-            col += limitHandler.bindLimitParametersAtStartOfQuery(rowSelection, collector, col);
-            limitHandler.bindLimitParametersAtEndOfQuery(rowSelection, collector, col);
+        private PagedQuery(LimitHandler limitHandler, String sql, int parameterCount) {
+            this.limitHandler = limitHandler;
+            this.sql = sql;
+            this.parameterCount = parameterCount;
+        }
 
-            Map<Integer, Object> parameters = collector.getParameters();
-            for (int i = 1; i <= parameters.keySet().size(); i++) {
-                Matcher matcher = SINGLE_QUESTION_MARK_REGEX.matcher(processedSQL);
-                if (matcher.find()) {
-                    String str = String.valueOf(parameters.get(i));
-                    processedSQL.replace(matcher.start(2), matcher.end(2), str);
-                }
-            }
-            return unescapeQuestionMarks(processedSQL.toString());
+        public String getSql() {
+            return sql;
+        }
 
-        } catch (SQLException e) {
-            throw new DBUserStorageException(e.getMessage(), e);
+        /**
+         * Binds the limit parameters placed before the query parameters.
+         *
+         * @return the number of parameters bound, i.e. the offset of the query parameters
+         */
+        public int bindLimitParametersAtStart(PreparedStatement statement, Pageable pageable) throws SQLException {
+            return limitHandler.bindLimitParametersAtStartOfQuery(pageable.toRowSelection(), statement, 1);
         }
-    }
 
+        /**
+         * Binds the limit parameters placed after the query parameters.
+         */
+        public void bindLimitParametersAtEnd(PreparedStatement statement, Pageable pageable, int startCount) throws SQLException {
+            RowSelection rowSelection = pageable.toRowSelection();
+            limitHandler.bindLimitParametersAtEndOfQuery(rowSelection, statement, startCount + parameterCount + 1);
+            limitHandler.setMaxRows(rowSelection, statement);
+        }
+    }
 
-    private static String unescapeQuestionMarks(String sql) {
-        return sql.replaceAll("\\?\\?", "?");
+    public static PagedQuery pagedQuery(String query, Pageable pageable, RDBMS RDBMS) {
+        String     key    = RDBMS.name() + '|' + (pageable.firstResult > 0) + '|' + (pageable.maxResults > 0) + '|' + query;
+        PagedQuery cached = PAGED_QUERIES.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        LimitHandler limitHandler = RDBMS.getDialect().getLimitHandler();
+        PagedQuery   pagedQuery   = new PagedQuery(limitHandler, limitHandler.processSql(query, pageable.toRowSelection()), countParameters(query));
+        if (limitHandler instanceof AbstractLimitHandler && !((AbstractLimitHandler) limitHandler).supportsVariableLimit()) {
+            // offset and limit are written into the SQL (e.g. DB2), it can not be shared between pages
+            return pagedQuery;
+        }
+        PAGED_QUERIES.putIfAbsent(key, pagedQuery);
+        return pagedQuery;
     }
 
-    private static String escapeQuestionMarks(String sql) {
-        return sql.replaceAll("\\?", "??");
+    /**
+     * Number of '?' placeholders in the query, '??' being an escaped question mark.
+     */
+    public static int countParameters(String query) {
+        int count = 0;
+        for (int i = 0; i < query.length(); i++) {
+            if (query.charAt(i) == '?') {
+                if (i + 1 < query.length() && query.charAt(i + 1) == '?') {
+                    i++;
+                } else {
+                    count++;
+                }
+            }
+        }
+        return count;
     }
 
 }
@@ -0,0 +1,128 @@
+package org.opensingular.dbuserprovider.util;
+
+import lombok.extern.jbosslog.JBossLog;
+import org.opensingular.dbuserprovider.DBUserStorageException;
+
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Runs password hash verifications on a bounded pool; the credential is rejected when the queue is full or the
+ * verification times out.
+ */
+@JBossLog
+public class PasswordVerificationExecutor implements Closeable {
+
+    private final ThreadPoolExecutor executor;
+    private final long               timeoutMillis;
+    private final LongAdder          verified       = new LongAdder();
+    private final LongAdder          rejected       = new LongAdder();
+    private final LongAdder          timedOut       = new LongAdder();
+    private final LongAdder          totalWaitNanos = new LongAdder();
+    private final LongAdder          totalNanos     = new LongAdder();
+    private final AtomicLong         maxNanos       = new AtomicLong();
+
+    public PasswordVerificationExecutor(String name, int threads, int queueSize, long timeoutMillis) {
+        int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.timeoutMillis = timeoutMillis;
+        this.executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                                               new ArrayBlockingQueue<>(Math.max(queueSize, 1)),
+                                               new DaemonThreadFactory(name, "verify"),
+                                               new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    public boolean verify(BooleanSupplier verification) {
+        long            submitted = System.nanoTime();
+        Future<Boolean> future;
+        try {
+            future = executor.submit(() -> {
+                long start = System.nanoTime();
+                totalWaitNanos.add(start - submitted);
+                try {
+                    return verification.getAsBoolean();
+                } finally {
+                    record(System.nanoTime() - start);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            log.warnv("Password verification rejected, verification queue is full: queueDepth={0}", getQueueDepth());
+            return false;
+        }
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            timedOut.increment();
+            log.warnv("Password verification timed out after {0}ms: queueDepth={1}", timeoutMillis, getQueueDepth());
+            return false;
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            throw new DBUserStorageException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    private void record(long nanos) {
+        verified.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public long getVerifiedCount() {
+        return verified.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public long getTimedOutCount() {
+        return timedOut.sum();
+    }
+
+    public double getAverageVerifyMillis() {
+        long count = verified.sum();
+        return count == 0 ? 0 : totalNanos.sum() / (count * 1_000_000d);
+    }
+
+    public double getAverageWaitMillis() {
+        long count = verified.sum();
+        return count == 0 ? 0 : totalWaitNanos.sum() / (count * 1_000_000d);
+    }
+
+    public double getMaxVerifyMillis() {
+        return maxNanos.get() / 1_000_000d;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PasswordVerificationExecutor{verified=%d, rejected=%d, timedOut=%d, queueDepth=%d, avgVerifyMs=%.2f, maxVerifyMs=%.2f, avgWaitMs=%.2f}",
+                             getVerifiedCount(), getRejectedCount(), getTimedOutCount(), getQueueDepth(),
+                             getAverageVerifyMillis(), getMaxVerifyMillis(), getAverageWaitMillis());
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
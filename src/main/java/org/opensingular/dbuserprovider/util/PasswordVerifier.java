@@ -0,0 +1,21 @@
+package org.opensingular.dbuserprovider.util;
+
+/**
+ * Checks a plain text password against the hash stored in the user database.
+ * One instance is resolved per provider configuration and shared by every login, so implementations must be
+ * thread safe.
+ */
+public interface PasswordVerifier {
+
+    boolean verify(String password, String hash);
+
+    static PasswordVerifier forHashFunction(String hashFunction) {
+        if (hashFunction.toLowerCase().contains("blowfish")) {
+            return new BCryptPasswordVerifier();
+        }
+        if (hashFunction.equals("PBKDF2-SHA256")) {
+            return new PBKDF2SHA256PasswordVerifier();
+        }
+        return new DigestPasswordVerifier(hashFunction);
+    }
+}
@@ -0,0 +1,79 @@
+package org.opensingular.dbuserprovider.util;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Short lived cache of successful password verifications, keyed by an HMAC of the username, stored hash and password
+ * so no password is kept and a changed hash never matches.
+ */
+public class VerifiedCredentialCache {
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private final boolean                enabled;
+    private final Cache<String, Boolean> verified;
+    private final ThreadLocal<Mac>       mac;
+
+    public VerifiedCredentialCache(long maxSize, long ttlSeconds) {
+        this.enabled = maxSize > 0 && ttlSeconds > 0;
+        this.verified = CacheBuilder.newBuilder()
+                                    .maximumSize(Math.max(maxSize, 0))
+                                    .expireAfterWrite(Math.max(ttlSeconds, 0), TimeUnit.SECONDS)
+                                    .build();
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        SecretKeySpec key = new SecretKeySpec(secret, ALGORITHM);
+        this.mac = ThreadLocal.withInitial(() -> {
+            try {
+                Mac m = Mac.getInstance(ALGORITHM);
+                m.init(key);
+                return m;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    public boolean verify(String username, String hash, String password, BooleanSupplier verification) {
+        if (!enabled || hash == null || hash.isEmpty()) {
+            return verification.getAsBoolean();
+        }
+        String key = key(username, hash, password);
+        if (verified.getIfPresent(key) != null) {
+            return true;
+        }
+        boolean result = verification.getAsBoolean();
+        if (result) {
+            verified.put(key, Boolean.TRUE);
+        }
+        return result;
+    }
+
+    private String key(String username, String hash, String password) {
+        Mac m = mac.get();
+        update(m, username);
+        update(m, hash);
+        update(m, password);
+        return Base64.getEncoder().encodeToString(m.doFinal());
+    }
+
+    private static void update(Mac m, String value) {
+        byte[] bytes = String.valueOf(value).getBytes(StandardCharsets.UTF_8);
+        // length prefix, so ("ab", "c") and ("a", "bc") give different keys
+        m.update((byte) (bytes.length >>> 24));
+        m.update((byte) (bytes.length >>> 16));
+        m.update((byte) (bytes.length >>> 8));
+        m.update((byte) bytes.length);
+        m.update(bytes);
+    }
+}
@@ -0,0 +1,164 @@
+package org.opensingular.dbuserprovider;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserCredentialModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.cache.CachedUserModel;
+import org.opensingular.dbuserprovider.model.AttributeSyncStats;
+import org.opensingular.dbuserprovider.model.QueryConfigurations;
+import org.opensingular.dbuserprovider.persistence.QueryTimeouts;
+import org.opensingular.dbuserprovider.persistence.QueryType;
+import org.opensingular.dbuserprovider.persistence.RDBMS;
+import org.opensingular.dbuserprovider.persistence.ShardRouter;
+import org.opensingular.dbuserprovider.persistence.StatementCountingDataSourceProvider;
+import org.opensingular.dbuserprovider.persistence.UserCache;
+import org.opensingular.dbuserprovider.persistence.UserCountCache;
+import org.opensingular.dbuserprovider.persistence.UserRepository;
+import org.opensingular.dbuserprovider.persistence.UserSearchIndex;
+import org.opensingular.dbuserprovider.persistence.UsernameFilter;
+import org.opensingular.dbuserprovider.util.PasswordVerificationExecutor;
+import org.opensingular.dbuserprovider.util.PasswordVerifier;
+import org.opensingular.dbuserprovider.util.VerifiedCredentialCache;
+
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DBUserStorageProviderTest {
+
+    private static final String FIND_BY_ID         = "select id, username, email from users where id = ?";
+    private static final String FIND_BY_USERNAME   = "select id, username, email from users where username = ?";
+    private static final String FIND_PASSWORD_HASH = "select hash_pwd from users where username = ?";
+    private static final String FIND_WITH_HASH     = "select id, username, email, hash_pwd from users where id = ?";
+
+    private StatementCountingDataSourceProvider database;
+    private UserRepository                      repository;
+    private DBUserStorageProvider               provider;
+    private ComponentModel                      model;
+    private RealmModel                          realm;
+
+    @Before
+    public void setUp() {
+        database = new StatementCountingDataSourceProvider();
+        database.answer(FIND_BY_ID, user());
+        database.answer(FIND_BY_USERNAME, user());
+        database.answer(FIND_PASSWORD_HASH, row("hash_pwd", DigestUtils.sha256Hex("secret"), "username", "john"));
+        database.answer(FIND_WITH_HASH, row("id", "42", "username", "john", "email", "john@example.com", "hash_pwd", DigestUtils.sha256Hex("secret")));
+        model = new ComponentModel();
+        model.setId("component");
+        realm = proxy(RealmModel.class, "getId", "realm");
+        provider = newProvider(null);
+    }
+
+    /**
+     * A provider without shared cache, so every lookup the session does not memoize reaches the database.
+     */
+    private DBUserStorageProvider newProvider(String findUserWithPasswordHash) {
+        QueryConfigurations queryConfigurations = new QueryConfigurations(
+                "select count(*) from users", "select id, username, email from users", FIND_BY_ID, null, FIND_BY_USERNAME, null,
+                "select id, username, email from users where username like ?", FIND_PASSWORD_HASH, findUserWithPasswordHash, null, null, "SHA-256", null, 100,
+                false, false, RDBMS.POSTGRESQL, false, true, true);
+        if (repository != null) {
+            repository.close();
+        }
+        repository = new UserRepository(new ShardRouter("test", Collections.singletonList(database), ShardRouter.Rule.PROBE, null),
+                                        queryConfigurations, new UserCache(0, 0, 0, 0, 0), PasswordVerifier.forHashFunction("SHA-256"),
+                                        new PasswordVerificationExecutor("test", 1, 10, 5000), new VerifiedCredentialCache(0, 0),
+                                        new UserCountCache("test", 0, 0), new UserSearchIndex("test", "", 0), 0, 1,
+                                        new UsernameFilter("test", false, 0.01, 0), new QueryTimeouts(new EnumMap<>(QueryType.class)));
+        return new DBUserStorageProvider(null, model, repository, queryConfigurations, new AttributeSyncStats());
+    }
+
+    @After
+    public void tearDown() {
+        repository.close();
+    }
+
+    @Test
+    public void loginRunsOneUserQuery() {
+        UserModel byUsername = provider.getUserByUsername("john", realm);
+        UserModel byId       = provider.getUserById(byUsername.getId(), realm);
+        assertEquals("john", byId.getUsername());
+
+        // a user cached by Keycloak long ago is reloaded before its password is checked
+        CachedUserModel cached = proxy(CachedUserModel.class, "getId", byUsername.getId(), "getUsername", "john",
+                                       "getEmail", "john@example.com", "getCacheTimestamp", 0L);
+        assertTrue(provider.isValid(realm, cached, UserCredentialModel.password("secret")));
+
+        // the user row once, the password hash once
+        assertEquals(2, database.getExecutedStatements());
+    }
+
+    @Test
+    public void reloadAndPasswordCheckShareOneQuery() {
+        provider = newProvider(FIND_WITH_HASH);
+        CachedUserModel cached = proxy(CachedUserModel.class, "getId", "f:component:42", "getUsername", "john",
+                                       "getEmail", "john@example.com", "getCacheTimestamp", 0L);
+
+        assertTrue(provider.isValid(realm, cached, UserCredentialModel.password("secret")));
+        assertFalse(provider.isValid(realm, cached, UserCredentialModel.password("wrong")));
+        assertEquals(Arrays.asList(FIND_WITH_HASH, FIND_WITH_HASH), database.getExecutedSql());
+    }
+
+    @Test
+    public void failedLookupIsNotMemoized() {
+        database.setFailing(true);
+        assertNull(provider.getUserByUsername("john", realm));
+
+        database.setFailing(false);
+        assertNotNull(provider.getUserByUsername("john", realm));
+        assertEquals(2, database.getExecutedStatements());
+    }
+
+    @Test
+    public void sessionMemoizesFoundUsersOnly() {
+        assertNotNull(provider.getUserByEmail("john@example.com", realm));
+        assertNotNull(provider.getUserByEmail("john@example.com", realm));
+        assertNull(provider.getUserByEmail("nobody@example.com", realm));
+        assertNull(provider.getUserByEmail("nobody@example.com", realm));
+
+        // the found user once, the missing one on every call
+        assertEquals(3, database.getExecutedStatements());
+    }
+
+    private static Map<String, String> user() {
+        return row("id", "42", "username", "john", "email", "john@example.com");
+    }
+
+    private static Map<String, String> row(String... columnsAndValues) {
+        Map<String, String> row = new LinkedHashMap<>();
+        for (int i = 0; i < columnsAndValues.length; i += 2) {
+            row.put(columnsAndValues[i], columnsAndValues[i + 1]);
+        }
+        return row;
+    }
+
+    /**
+     * A Keycloak model answering the given getters and the defaults of every other method.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, Object... gettersAndValues) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (p, method, args) -> {
+            for (int i = 0; i < gettersAndValues.length; i += 2) {
+                if (method.getName().equals(gettersAndValues[i])) {
+                    return gettersAndValues[i + 1];
+                }
+            }
+            return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+        });
+    }
+}
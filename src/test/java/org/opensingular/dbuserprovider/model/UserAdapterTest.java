@@ -0,0 +1,118 @@
+package org.opensingular.dbuserprovider.model;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.common.util.MultivaluedHashMap;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.storage.federated.UserFederatedStorageProvider;
+
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Attribute writes of the adapter, checked against an in-memory federated storage.
+ */
+public class UserAdapterTest {
+
+    private final Map<String, MultivaluedHashMap<String, String>> stored = new HashMap<>();
+    private final AtomicInteger                                   writes = new AtomicInteger();
+
+    private KeycloakSession    session;
+    private RealmModel         realm;
+    private ComponentModel     model;
+    private AttributeSyncStats stats;
+
+    @Before
+    public void setUp() {
+        UserFederatedStorageProvider storage = proxy(UserFederatedStorageProvider.class, (method, args) -> {
+            switch (method) {
+                case "getAttributes":
+                    return new MultivaluedHashMap<>(stored.getOrDefault((String) args[1], new MultivaluedHashMap<>()));
+                case "setAttribute":
+                    writes.incrementAndGet();
+                    stored.computeIfAbsent((String) args[1], id -> new MultivaluedHashMap<>()).put((String) args[2], (List<String>) args[3]);
+                    return null;
+                default:
+                    return null;
+            }
+        });
+        session = proxy(KeycloakSession.class, (method, args) -> method.equals("userFederatedStorage") ? storage : null);
+        realm = proxy(RealmModel.class, (method, args) -> method.equals("getId") ? "realm" : null);
+        model = new ComponentModel();
+        model.setId("component");
+        stats = new AttributeSyncStats();
+    }
+
+    @Test
+    public void unchangedAttributesAreNotWrittenAgain() {
+        adapter(row("id", "42", "username", "john", "phone", "555-0100"), false);
+        int firstWrites = writes.get();
+
+        adapter(row("id", "42", "username", "john", "phone", "555-0100"), false);
+        assertEquals(firstWrites, writes.get());
+
+        adapter(row("id", "42", "username", "john", "phone", "555-0199"), false);
+        assertEquals(firstWrites + 1, writes.get());
+        assertEquals(Collections.singletonList("555-0199"), stored.get("f:component:42").get("phone"));
+        assertEquals(firstWrites + 1, stats.getApplied());
+    }
+
+    @Test
+    public void transientAttributesAreServedWithoutWrites() {
+        UserAdapter adapter = adapter(row("id", "42", "username", "john", "phone", "555-0100"), true);
+
+        assertEquals("555-0100", adapter.getFirstAttribute("phone"));
+        assertEquals(Collections.singletonList("555-0100"), adapter.getAttributes().get("phone"));
+        assertEquals(0, writes.get());
+        assertEquals(0, stats.getApplied());
+    }
+
+    @Test
+    public void lazyAttributesAreLoadedOnceWhenRead() {
+        AtomicInteger loads   = new AtomicInteger();
+        UserAdapter   adapter = new UserAdapter(session, realm, model, row("id", "42", "username", "john"), true, true, () -> {
+            loads.incrementAndGet();
+            return row("department", "sales");
+        }, Collections.singleton("department"), stats);
+
+        assertNull(adapter.getFirstAttribute("phone"));
+        assertEquals(0, loads.get());
+        assertEquals("sales", adapter.getFirstAttribute("department"));
+        assertEquals(Collections.singletonList("sales"), adapter.getAttributes().get("department"));
+        assertEquals(1, loads.get());
+    }
+
+    private UserAdapter adapter(Map<String, String> data, boolean transientAttributes) {
+        return new UserAdapter(session, realm, model, data, true, transientAttributes, null, Collections.emptySet(), stats);
+    }
+
+    private static Map<String, String> row(String... columnsAndValues) {
+        Map<String, String> row = new LinkedHashMap<>();
+        for (int i = 0; i < columnsAndValues.length; i += 2) {
+            row.put(columnsAndValues[i], columnsAndValues[i + 1]);
+        }
+        return row;
+    }
+
+    private interface Handler {
+        Object handle(String method, Object[] args);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, Handler handler) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (p, method, args) -> {
+            Object result = handler.handle(method.getName(), args);
+            return result == null && method.getReturnType() == boolean.class ? Boolean.FALSE : result;
+        });
+    }
+}
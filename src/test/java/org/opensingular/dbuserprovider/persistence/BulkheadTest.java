@@ -0,0 +1,111 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BulkheadTest {
+
+    // 3 connections, 1 kept for logins: 2 for admin queries, which may wait up to 10 seconds
+    private final Bulkhead bulkhead = new Bulkhead("test", 3, 1, 5, 10_000, 30_000);
+
+    @Test
+    public void adminLaneLeavesReservedConnections() {
+        assertNotNull(bulkhead.acquire(Bulkhead.Lane.ADMIN, 0));
+        assertNotNull(bulkhead.acquire(Bulkhead.Lane.ADMIN, 0));
+        assertNull(bulkhead.acquire(Bulkhead.Lane.ADMIN, System.nanoTime()));
+        assertNotNull(bulkhead.acquire(Bulkhead.Lane.AUTH, 0));
+    }
+
+    @Test
+    public void queueWaitEndsWithQueryBudget() {
+        bulkhead.acquire(Bulkhead.Lane.ADMIN, 0);
+        bulkhead.acquire(Bulkhead.Lane.ADMIN, 0);
+
+        long start = System.nanoTime();
+        assertNull(bulkhead.acquire(Bulkhead.Lane.ADMIN, start + TimeUnit.MILLISECONDS.toNanos(200)));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+    }
+
+    @Test
+    public void connectionWaitEndsWithQueryBudget() {
+        bulkhead.acquire(Bulkhead.Lane.AUTH, 0);
+        bulkhead.acquire(Bulkhead.Lane.AUTH, 0);
+        bulkhead.acquire(Bulkhead.Lane.ADMIN, 0);
+
+        long start = System.nanoTime();
+        assertNull(bulkhead.acquire(Bulkhead.Lane.AUTH, start + TimeUnit.MILLISECONDS.toNanos(200)));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+    }
+
+    @Test
+    public void queuedAdminQueryGetsReleasedConnection() throws Exception {
+        Bulkhead.Permit permit = bulkhead.acquire(Bulkhead.Lane.ADMIN, 0);
+        bulkhead.acquire(Bulkhead.Lane.ADMIN, 0);
+
+        Thread release = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            permit.close();
+        });
+        release.start();
+        assertNotNull(bulkhead.acquire(Bulkhead.Lane.ADMIN, 0));
+        release.join();
+    }
+
+    @Test
+    public void fullQueueRejectsAtOnce() {
+        Bulkhead noQueue = new Bulkhead("test", 3, 1, 0, 10_000, 30_000);
+        noQueue.acquire(Bulkhead.Lane.ADMIN, 0);
+        noQueue.acquire(Bulkhead.Lane.ADMIN, 0);
+
+        long start = System.nanoTime();
+        assertNull(noQueue.acquire(Bulkhead.Lane.ADMIN, 0));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Test
+    public void adminLaneKeepsOneConnectionWhenAllAreReserved() {
+        Bulkhead allReserved = new Bulkhead("test", 3, 5, 0, 0, 0);
+
+        assertNotNull(allReserved.acquire(Bulkhead.Lane.ADMIN, 0));
+        assertNull(allReserved.acquire(Bulkhead.Lane.ADMIN, 0));
+    }
+
+    @Test
+    public void noReservationLeavesAdminLaneUnthrottled() {
+        Bulkhead unthrottled = new Bulkhead("test", 3, 0, 0, 0, 0);
+
+        for (int i = 0; i < 10; i++) {
+            assertNotNull(unthrottled.acquire(Bulkhead.Lane.ADMIN, 0));
+        }
+    }
+
+    @Test
+    public void loginQueriesUseTheAuthLane() {
+        assertEquals(Bulkhead.Lane.AUTH, QueryType.LOGIN_LOOKUP.getLane());
+        assertEquals(Bulkhead.Lane.AUTH, QueryType.HASH_FETCH.getLane());
+        assertEquals(Bulkhead.Lane.ADMIN, QueryType.SEARCH.getLane());
+        assertEquals(Bulkhead.Lane.ADMIN, QueryType.COUNT.getLane());
+        assertEquals(Bulkhead.Lane.ADMIN, QueryType.LISTING.getLane());
+    }
+
+    @Test
+    public void closedPermitIsReleasedOnce() {
+        Bulkhead.Permit permit = bulkhead.acquire(Bulkhead.Lane.ADMIN, 0);
+        bulkhead.acquire(Bulkhead.Lane.ADMIN, 0);
+        permit.close();
+        permit.close();
+
+        assertNotNull(bulkhead.acquire(Bulkhead.Lane.ADMIN, 0));
+        assertNull(bulkhead.acquire(Bulkhead.Lane.ADMIN, System.nanoTime()));
+    }
+}
@@ -0,0 +1,41 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class CircuitBreakerTest {
+
+    // opens on 2 failures out of 2 calls, half open right away
+    private final CircuitBreaker breaker = new CircuitBreaker("test", 50, 0, 2, 0);
+
+    @Test
+    public void probeOutcomeDecides() {
+        open();
+        long probe = breaker.tryAcquire();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertEquals(CircuitBreaker.REJECTED, breaker.tryAcquire());
+
+        breaker.record(probe, true, 0);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void callStartedBeforeOpeningDoesNotDecideProbe() {
+        long early = breaker.tryAcquire();
+        open();
+        long probe = breaker.tryAcquire();
+
+        breaker.record(early, true, 0);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+        breaker.record(probe, false, 0);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    private void open() {
+        for (int i = 0; i < 2; i++) {
+            breaker.record(breaker.tryAcquire(), false, 0);
+        }
+    }
+}
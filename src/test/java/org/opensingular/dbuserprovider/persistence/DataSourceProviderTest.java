@@ -0,0 +1,111 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import com.zaxxer.hikari.HikariConfig;
+import org.junit.After;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Reads rotate over the replicas, skip an ejected one and fall back to the primary when none is left.
+ */
+public class DataSourceProviderTest {
+
+    private final DataSourceProvider provider = new DataSourceProvider();
+
+    @After
+    public void tearDown() {
+        provider.close();
+    }
+
+    @Test
+    public void readsRotateOverReplicas() throws Exception {
+        provider.configure(config("primary", new AtomicBoolean(), 10),
+                           Arrays.asList(config("replica-1", new AtomicBoolean(), 2), config("replica-2", new AtomicBoolean(), 3)), 60, 0);
+
+        assertEquals(Arrays.asList("replica-1", "replica-2", "replica-1"), Arrays.asList(read(), read(), read()));
+        assertEquals(5, provider.getReadPoolSize());
+    }
+
+    @Test
+    public void failingReplicaIsEjected() throws Exception {
+        AtomicBoolean down = new AtomicBoolean(true);
+        provider.configure(config("primary", new AtomicBoolean(), 10),
+                           Arrays.asList(config("replica-1", down, 2), config("replica-2", new AtomicBoolean(), 2)), 60, 250);
+
+        assertEquals(Arrays.asList("replica-2", "replica-2", "replica-2"), Arrays.asList(read(), read(), read()));
+
+        // still ejected for the cooldown period after coming back
+        down.set(false);
+        assertEquals(Arrays.asList("replica-2", "replica-2"), Arrays.asList(read(), read()));
+    }
+
+    @Test
+    public void primaryServesWhenNoReplicaCan() throws Exception {
+        provider.configure(config("primary", new AtomicBoolean(), 10), Collections.singletonList(config("replica-1", new AtomicBoolean(true), 2)), 60, 250);
+
+        assertEquals(Arrays.asList("primary", "primary"), Arrays.asList(read(), read()));
+    }
+
+    private String read() throws SQLException {
+        try (Connection c = provider.getReadConnection()) {
+            return c.getCatalog();
+        }
+    }
+
+    /**
+     * A pool over a database named {@code name}, refusing connections while {@code down} is set.
+     */
+    private static HikariConfig config(String name, AtomicBoolean down, int poolSize) {
+        HikariConfig config = new HikariConfig();
+        config.setPoolName(name);
+        config.setMaximumPoolSize(poolSize);
+        config.setMinimumIdle(0);
+        config.setDataSource(proxy(DataSource.class, (method, args) -> {
+            if (!method.equals("getConnection")) {
+                return null;
+            }
+            if (down.get()) {
+                throw new SQLException("Connection refused");
+            }
+            return proxy(Connection.class, (m, a) -> {
+                switch (m) {
+                    case "getCatalog":
+                        return name;
+                    case "isValid":
+                    case "getAutoCommit":
+                        return true;
+                    default:
+                        return null;
+                }
+            });
+        }));
+        return config;
+    }
+
+    private interface Handler {
+        Object handle(String method, Object[] args) throws SQLException;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, Handler handler) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (p, method, args) -> {
+            Object result = handler.handle(method.getName(), args);
+            if (result == null && method.getReturnType() == boolean.class) {
+                return false;
+            }
+            if (result == null && method.getReturnType() == int.class) {
+                return 0;
+            }
+            return result;
+        });
+    }
+}
@@ -0,0 +1,60 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.EnumMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The statement timeout is what is left of the budget, rounded up to whole seconds.
+ */
+public class QueryTimeoutsTest {
+
+    private final QueryTimeouts timeouts = new QueryTimeouts(budgets(1500, 30_000));
+
+    @Test
+    public void statementTimeoutIsTheRestOfTheBudget() throws Exception {
+        assertEquals(2, timeouts.remainingSeconds(QueryType.LOGIN_LOOKUP, timeouts.deadline(QueryType.LOGIN_LOOKUP)));
+        assertEquals(1, timeouts.remainingSeconds(QueryType.LOGIN_LOOKUP, System.nanoTime() + 1_000_000));
+        assertEquals(0, timeouts.deadline(QueryType.COUNT));
+        assertEquals(0, timeouts.remainingSeconds(QueryType.COUNT, 0));
+    }
+
+    @Test(expected = SQLTimeoutException.class)
+    public void exhaustedBudgetFailsBeforeTheStatement() throws Exception {
+        timeouts.remainingSeconds(QueryType.LOGIN_LOOKUP, System.nanoTime() - 1);
+    }
+
+    @Test
+    public void onlyTimeoutsAreCounted() {
+        assertTrue(timeouts.recordIfTimeout(QueryType.SEARCH, new SQLTimeoutException()));
+        assertTrue(timeouts.recordIfTimeout(QueryType.SEARCH, new SQLException("canceling statement", "57014")));
+        assertTrue(timeouts.recordIfTimeout(QueryType.SEARCH, new SQLException("timed out", "HYT00")));
+        assertFalse(timeouts.recordIfTimeout(QueryType.SEARCH, new SQLException("Connection refused", "08001")));
+        assertEquals(3, timeouts.getTimedOut(QueryType.SEARCH));
+        assertEquals(0, timeouts.getTimedOut(QueryType.LOGIN_LOOKUP));
+    }
+
+    @Test
+    public void longestBudgetIsUnboundedWhenOneTypeIs() {
+        assertEquals(0, timeouts.getMaxTimeoutMillis());
+        Map<QueryType, Long> all = budgets(1500, 30_000);
+        all.put(QueryType.COUNT, 5000L);
+        all.put(QueryType.LISTING, 5000L);
+        assertEquals(30_000, new QueryTimeouts(all).getMaxTimeoutMillis());
+    }
+
+    private static Map<QueryType, Long> budgets(long login, long search) {
+        Map<QueryType, Long> budgets = new EnumMap<>(QueryType.class);
+        budgets.put(QueryType.LOGIN_LOOKUP, login);
+        budgets.put(QueryType.HASH_FETCH, login);
+        budgets.put(QueryType.SEARCH, search);
+        return budgets;
+    }
+}
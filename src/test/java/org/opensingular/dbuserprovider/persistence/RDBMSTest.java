@@ -0,0 +1,28 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Search terms become prefix queries with every word required, in each database full-text syntax.
+ */
+public class RDBMSTest {
+
+    @Test
+    public void fullTextTermPerDatabase() {
+        assertEquals("john:* & smith:*", RDBMS.POSTGRESQL.fullTextTerm("john smith"));
+        assertEquals("+john* +smith*", RDBMS.MYSQL.fullTextTerm("john smith"));
+        assertEquals("john% AND smith%", RDBMS.ORACLE.fullTextTerm("john smith"));
+        assertEquals("\"john*\" AND \"smith*\"", RDBMS.SQL_SERVER.fullTextTerm("john smith"));
+    }
+
+    @Test
+    public void operatorsAreNotPassedThrough() {
+        assertEquals("o:* & brien:*", RDBMS.POSTGRESQL.fullTextTerm("o'brien"));
+        assertEquals("+john* +example* +com*", RDBMS.MYSQL.fullTextTerm("-john@example.com*"));
+        assertNull(RDBMS.POSTGRESQL.fullTextTerm("!& |"));
+        assertNull(RDBMS.POSTGRESQL.fullTextTerm(null));
+    }
+}
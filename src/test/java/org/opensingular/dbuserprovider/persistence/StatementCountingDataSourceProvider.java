@@ -0,0 +1,167 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import javax.sql.DataSource;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * In-memory stand-in for a database: each query string is answered with fixed rows, and every executed statement
+ * is recorded.
+ */
+public class StatementCountingDataSourceProvider extends DataSourceProvider {
+
+    private final Map<String, Function<List<Object>, List<Map<String, String>>>> answers       = new ConcurrentHashMap<>();
+    private final List<String>                                                   executed      = new CopyOnWriteArrayList<>();
+    private final List<Integer>                                                  queryTimeouts = new CopyOnWriteArrayList<>();
+    private volatile SQLException                                                failure;
+    private volatile long                                                        delayMillis;
+
+    /**
+     * Answers the query with the rows having a value equal to the first bound parameter.
+     */
+    @SafeVarargs
+    public final void answer(String sql, Map<String, String>... rows) {
+        answer(sql, params -> Arrays.stream(rows).filter(r -> r.containsValue(String.valueOf(params.isEmpty() ? null : params.get(0))))
+                                    .collect(Collectors.toList()));
+    }
+
+    /**
+     * @param rows the rows of the query for its bound parameters, in order; the columns are those of the first row
+     */
+    public void answer(String sql, Function<List<Object>, List<Map<String, String>>> rows) {
+        answers.put(sql, rows);
+    }
+
+    /**
+     * Makes every following statement fail, like a database that went down.
+     */
+    public void setFailing(boolean failing) {
+        failWith(failing ? new SQLException("Connection refused") : null);
+    }
+
+    /**
+     * Makes every following statement fail with that exception, or succeed again when null.
+     */
+    public void failWith(SQLException failure) {
+        this.failure = failure;
+    }
+
+    /**
+     * Makes every following statement take that long.
+     */
+    public void setDelayMillis(long delayMillis) {
+        this.delayMillis = delayMillis;
+    }
+
+    public int getExecutedStatements() {
+        return executed.size();
+    }
+
+    public List<String> getExecutedSql() {
+        return executed;
+    }
+
+    /**
+     * The statement timeout, in seconds, set on each statement that had one.
+     */
+    public List<Integer> getQueryTimeouts() {
+        return queryTimeouts;
+    }
+
+    @Override
+    synchronized Optional<DataSource> getDataSource() {
+        return Optional.of(proxy(DataSource.class, (method, args) -> null));
+    }
+
+    @Override
+    Connection getReadConnection() {
+        return proxy(Connection.class, (method, args) -> method.equals("prepareStatement") ? statement((String) args[0]) : null);
+    }
+
+    private PreparedStatement statement(String sql) {
+        Map<Integer, Object> params = new TreeMap<>();
+        return proxy(PreparedStatement.class, (method, args) -> {
+            if (method.startsWith("set") && args != null && args.length == 2 && args[0] instanceof Integer) {
+                params.put((Integer) args[0], args[1]);
+            } else if (method.equals("setQueryTimeout")) {
+                queryTimeouts.add((Integer) args[0]);
+            } else if (method.equals("executeQuery")) {
+                executed.add(sql);
+                if (delayMillis > 0) {
+                    try {
+                        Thread.sleep(delayMillis);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+                List<Map<String, String>> rows = answers.getOrDefault(sql, p -> new ArrayList<>()).apply(new ArrayList<>(params.values()));
+                return resultSet(rows.isEmpty() ? new ArrayList<>() : new ArrayList<>(rows.get(0).keySet()), rows);
+            }
+            return null;
+        });
+    }
+
+    private static ResultSet resultSet(List<String> labels, List<Map<String, String>> rows) {
+        int[] row = {-1};
+        ResultSetMetaData metaData = proxy(ResultSetMetaData.class, (method, args) -> {
+            if (method.equals("getColumnCount")) {
+                return labels.size();
+            }
+            return method.equals("getColumnLabel") ? labels.get((Integer) args[0] - 1) : null;
+        });
+        return proxy(ResultSet.class, (method, args) -> {
+            switch (method) {
+                case "getMetaData":
+                    return metaData;
+                case "next":
+                    return ++row[0] < rows.size();
+                case "getString":
+                case "getObject":
+                    return value(labels, rows.get(row[0]), args[0]);
+                case "getInt":
+                    return Integer.valueOf(value(labels, rows.get(row[0]), args[0]));
+                default:
+                    return null;
+            }
+        });
+    }
+
+    private static String value(List<String> labels, Map<String, String> row, Object column) {
+        return row.get(column instanceof Integer ? labels.get((Integer) column - 1) : (String) column);
+    }
+
+    private interface Handler {
+        Object handle(String method, Object[] args) throws SQLException;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, Handler handler) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            Object result = handler.handle(method.getName(), args);
+            if (result == null && method.getReturnType() == boolean.class) {
+                return false;
+            }
+            if (result == null && method.getReturnType() == int.class) {
+                return 0;
+            }
+            return result;
+        });
+    }
+}
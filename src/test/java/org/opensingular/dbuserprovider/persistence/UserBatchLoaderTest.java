@@ -0,0 +1,95 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Lookups by id share queries only when they overlap; a lone lookup runs at once.
+ */
+public class UserBatchLoaderTest {
+
+    private final List<List<String>> batches = new CopyOnWriteArrayList<>();
+    private final CountDownLatch     started = new CountDownLatch(1);
+    private final CountDownLatch     release = new CountDownLatch(1);
+    private final ExecutorService    callers = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        callers.shutdownNow();
+    }
+
+    /**
+     * Answers every id with its row; a batch with id "1" blocks until released.
+     */
+    private Map<String, List<Map<String, String>>> query(List<String> ids) {
+        batches.add(new ArrayList<>(ids));
+        if (ids.contains("1")) {
+            started.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return ids.stream().collect(Collectors.toMap(id -> id, id -> Collections.singletonList(UserRepositoryTest.row("id", id))));
+    }
+
+    @Test
+    public void loneLookupDoesNotWaitForTheWindow() {
+        UserBatchLoader loader = new UserBatchLoader(5000, 100, this::query);
+
+        long start = System.nanoTime();
+        assertEquals("2", loader.load("2").get(0).get("id"));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+    }
+
+    @Test
+    public void concurrentLookupsOfOneIdShareOneQuery() throws Exception {
+        UserBatchLoader loader = new UserBatchLoader(0, 100, this::query);
+
+        Future<List<Map<String, String>>> first = callers.submit(() -> loader.load("1"));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        Future<List<Map<String, String>>> second = callers.submit(() -> loader.load("1"));
+        Thread.sleep(100);
+        release.countDown();
+
+        assertEquals("1", first.get(5, TimeUnit.SECONDS).get(0).get("id"));
+        assertEquals("1", second.get(5, TimeUnit.SECONDS).get(0).get("id"));
+        assertEquals(1, batches.size());
+    }
+
+    @Test
+    public void lookupsDuringARunningBatchAreGathered() throws Exception {
+        UserBatchLoader loader = new UserBatchLoader(300, 100, this::query);
+
+        Future<List<Map<String, String>>> blocked = callers.submit(() -> loader.load("1"));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        Future<List<Map<String, String>>> second = callers.submit(() -> loader.load("2"));
+        Future<List<Map<String, String>>> third  = callers.submit(() -> loader.load("3"));
+
+        assertEquals("2", second.get(5, TimeUnit.SECONDS).get(0).get("id"));
+        assertEquals("3", third.get(5, TimeUnit.SECONDS).get(0).get("id"));
+        release.countDown();
+        assertEquals("1", blocked.get(5, TimeUnit.SECONDS).get(0).get("id"));
+        assertEquals(2, batches.size());
+        assertEquals(new HashSet<>(Arrays.asList("2", "3")), new HashSet<>(batches.get(1)));
+    }
+}
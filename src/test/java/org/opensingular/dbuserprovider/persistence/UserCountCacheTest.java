@@ -0,0 +1,61 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A stale count is answered at once while the count query runs again in the background.
+ */
+public class UserCountCacheTest {
+
+    private final UserCountCache cache = new UserCountCache("test", 1, 0);
+
+    @After
+    public void tearDown() {
+        cache.close();
+    }
+
+    @Test
+    public void staleCountIsReturnedWhileRefreshing() throws Exception {
+        assertEquals(10, cache.get(null, () -> 10));
+        Thread.sleep(1100);
+
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch loaded  = new CountDownLatch(1);
+        assertEquals(10, cache.get(null, () -> {
+            try {
+                release.await();
+                return 20;
+            } catch (InterruptedException e) {
+                return null;
+            } finally {
+                loaded.countDown();
+            }
+        }));
+        release.countDown();
+        assertTrue(loaded.await(5, TimeUnit.SECONDS));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cache.get(null, () -> 30) != 20 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(20, cache.get(null, () -> 30));
+    }
+
+    @Test
+    public void failedCountIsNotCached() {
+        AtomicInteger loads = new AtomicInteger();
+
+        assertEquals(0, cache.get("jo", () -> loads.incrementAndGet() > 1 ? 5 : null));
+        assertEquals(5, cache.get("jo", () -> loads.incrementAndGet() > 1 ? 5 : null));
+        assertEquals(5, cache.get("jo", () -> loads.incrementAndGet() > 1 ? 6 : null));
+        assertEquals(2, loads.get());
+    }
+}
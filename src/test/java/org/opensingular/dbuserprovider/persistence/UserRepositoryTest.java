@@ -0,0 +1,292 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.After;
+import org.junit.Test;
+import org.opensingular.dbuserprovider.DBUserStorageException;
+import org.opensingular.dbuserprovider.model.QueryConfigurations;
+import org.opensingular.dbuserprovider.util.PagingUtil;
+import org.opensingular.dbuserprovider.util.PasswordVerificationExecutor;
+import org.opensingular.dbuserprovider.util.PasswordVerifier;
+import org.opensingular.dbuserprovider.util.VerifiedCredentialCache;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Repository paging and routing against in-memory databases, checked through the statements they receive.
+ */
+public class UserRepositoryTest {
+
+    private static final String LIST_ALL           = "select id, username from users";
+    private static final String SEARCH             = "select id, username from users where username like ?";
+    private static final String FIND_BY_USERNAME   = "select id, username from users where username = ?";
+    private static final String FIND_BY_EMAIL      = "select id, username, email from users where email = ?";
+    private static final String FIND_PASSWORD_HASH = "select hash_pwd from users where username = ?";
+
+    private final List<UserRepository> repositories = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        repositories.forEach(UserRepository::close);
+    }
+
+    @Test
+    public void nextPageSeeksPastTheLastRow() {
+        StatementCountingDataSourceProvider database = new StatementCountingDataSourceProvider();
+        List<Map<String, String>>           users    = users(1, 5);
+        String ordered = "select * from (" + LIST_ALL + ") seek_page order by id";
+        String seek    = "select * from (" + LIST_ALL + ") seek_page where id > ? order by id";
+        database.answer(PagingUtil.pagedQuery(ordered, new PagingUtil.Pageable(0, 2), RDBMS.POSTGRESQL).getSql(),
+                        params -> users.subList(0, (Integer) params.get(0)));
+        database.answer(PagingUtil.pagedQuery(seek, new PagingUtil.Pageable(0, 2), RDBMS.POSTGRESQL).getSql(),
+                        params -> users.stream()
+                                       .filter(u -> Integer.parseInt(u.get("id")) > Integer.parseInt((String) params.get(0)))
+                                       .limit((Integer) params.get(1))
+                                       .collect(Collectors.toList()));
+        UserRepository repository = new Configuration().seekColumn("id").build(database);
+
+        assertEquals(Arrays.asList("1", "2"), ids(repository.findUsers(null, new PagingUtil.Pageable(-1, 2))));
+        assertEquals(Arrays.asList("3", "4"), ids(repository.findUsers(null, new PagingUtil.Pageable(2, 2))));
+        assertEquals(Arrays.asList("5"), ids(repository.findUsers(null, new PagingUtil.Pageable(4, 2))));
+        assertEquals(3, database.getExecutedStatements());
+        assertEquals(seek + " limit ?", database.getExecutedSql().get(2));
+    }
+
+    @Test
+    public void pageWithoutCursorFallsBackToOffset() {
+        StatementCountingDataSourceProvider database = new StatementCountingDataSourceProvider();
+        String ordered = "select * from (" + LIST_ALL + ") seek_page order by id";
+        UserRepository repository = new Configuration().seekColumn("id").build(database);
+
+        repository.findUsers(null, new PagingUtil.Pageable(10, 2));
+
+        assertEquals(Collections.singletonList(ordered + " limit ? offset ?"), database.getExecutedSql());
+    }
+
+    @Test
+    public void pageTotalAnswersTheFollowingCount() {
+        StatementCountingDataSourceProvider database = new StatementCountingDataSourceProvider();
+        String page = "select count_page.*, count(*) over() as total_count_ from (" + SEARCH + ") count_page";
+        database.answer(PagingUtil.pagedQuery(page, new PagingUtil.Pageable(0, 2), RDBMS.POSTGRESQL).getSql(),
+                        params -> Arrays.asList(row("id", "1", "username", "jo1", "total_count_", "7"),
+                                                row("id", "2", "username", "jo2", "total_count_", "7")));
+        UserRepository repository = new Configuration().pageWithTotalCount(60).build(database);
+
+        List<Map<String, String>> users = repository.findUsers("jo", new PagingUtil.Pageable(-1, 2));
+
+        assertEquals(Arrays.asList("1", "2"), ids(users));
+        assertFalse(users.get(0).containsKey("total_count_"));
+        assertEquals(7, repository.getUsersCount("jo"));
+        assertEquals(1, database.getExecutedStatements());
+    }
+
+    @Test
+    public void emptyFirstPageCountsZero() {
+        StatementCountingDataSourceProvider database   = new StatementCountingDataSourceProvider();
+        UserRepository                      repository = new Configuration().pageWithTotalCount(60).build(database);
+
+        assertTrue(repository.findUsers("nobody", new PagingUtil.Pageable(0, 2)).isEmpty());
+        assertEquals(0, repository.getUsersCount("nobody"));
+        assertEquals(1, database.getExecutedStatements());
+    }
+
+    @Test
+    public void searchTermIsBoundInFullTextSyntax() {
+        StatementCountingDataSourceProvider database = new StatementCountingDataSourceProvider();
+        List<Object>                        bound    = new ArrayList<>();
+        database.answer(SEARCH, params -> {
+            bound.addAll(params);
+            return users(1, 1);
+        });
+        UserRepository repository = new Configuration().fullTextSearch().build(database);
+
+        assertEquals(Arrays.asList("1"), ids(repository.findUsers("John Sm", null)));
+        assertEquals(Arrays.asList("John:* & Sm:*"), bound);
+
+        repository.findUsers("*", null);
+        assertEquals(LIST_ALL, database.getExecutedSql().get(1));
+    }
+
+    @Test
+    public void emailLookupUsesItsOwnQuery() {
+        StatementCountingDataSourceProvider database = new StatementCountingDataSourceProvider();
+        database.answer(FIND_BY_EMAIL, row("id", "1", "username", "john", "email", "john@example.com"));
+        UserRepository repository = new Configuration().findByEmail(FIND_BY_EMAIL).build(database);
+
+        assertEquals("john", repository.findUserByEmail("john@example.com").get().get("username"));
+        assertEquals(Collections.singletonList(FIND_BY_EMAIL), database.getExecutedSql());
+    }
+
+    @Test
+    public void emailIsLookedUpAsUsernameWithoutEmailQuery() {
+        StatementCountingDataSourceProvider database   = new StatementCountingDataSourceProvider();
+        UserRepository                      repository = new Configuration().build(database);
+
+        assertFalse(repository.findUserByEmail("john@example.com").isPresent());
+        assertEquals(Collections.singletonList(FIND_BY_USERNAME), database.getExecutedSql());
+    }
+
+    @Test
+    public void shardPagesAreMergedInOrder() {
+        StatementCountingDataSourceProvider first      = shard(users(1, 1), users(3, 3), users(5, 5));
+        StatementCountingDataSourceProvider second     = shard(users(2, 2), users(4, 4));
+        UserRepository                      repository = new Configuration().build(first, second);
+
+        assertEquals(Arrays.asList("2", "3", "4"), ids(repository.findUsers(null, new PagingUtil.Pageable(1, 3))));
+        assertEquals(Arrays.asList("1", "2", "3", "4", "5"), ids(repository.findUsers(null, new PagingUtil.Pageable(-1, 10))));
+    }
+
+    @Test
+    public void failedShardOnlyLosesItsRows() {
+        StatementCountingDataSourceProvider first      = shard(users(1, 1), users(3, 3));
+        StatementCountingDataSourceProvider second     = shard(users(2, 2));
+        UserRepository                      repository = new Configuration().build(first, second);
+        second.setFailing(true);
+
+        assertEquals(Arrays.asList("1", "3"), ids(repository.findUsers(null, new PagingUtil.Pageable(0, 10))));
+        first.setFailing(true);
+        assertNull(repository.findUsers(null, new PagingUtil.Pageable(0, 10)));
+    }
+
+    @Test
+    public void probedCredentialsFailOnlyWhenNoShardHoldsTheUser() {
+        StatementCountingDataSourceProvider first  = new StatementCountingDataSourceProvider();
+        StatementCountingDataSourceProvider second = new StatementCountingDataSourceProvider();
+        second.answer(FIND_PASSWORD_HASH, row("hash_pwd", DigestUtils.sha256Hex("secret"), "username", "john"));
+        UserRepository repository = new Configuration().build(first, second);
+        first.setFailing(true);
+
+        assertTrue(repository.validateCredentials("john", "secret"));
+        try {
+            repository.validateCredentials("mary", "secret");
+            fail("a failed shard may hold the user");
+        } catch (DBUserStorageException expected) {
+            // not taken for a wrong password
+        }
+        first.setFailing(false);
+        assertFalse(repository.validateCredentials("mary", "secret"));
+    }
+
+    @Test
+    public void statementTimeoutIsTheQueryBudget() {
+        StatementCountingDataSourceProvider database   = new StatementCountingDataSourceProvider();
+        UserRepository                      repository = new Configuration().timeout(QueryType.LOGIN_LOOKUP, 2500).build(database);
+
+        repository.findUserByUsername("john");
+        repository.findUsers(null, null);
+
+        assertEquals(Collections.singletonList(3), database.getQueryTimeouts());
+        assertEquals(2, database.getExecutedStatements());
+    }
+
+    @Test
+    public void cancelledStatementIsCountedAsTimeout() {
+        StatementCountingDataSourceProvider database   = new StatementCountingDataSourceProvider();
+        UserRepository                      repository = new Configuration().timeout(QueryType.LOGIN_LOOKUP, 2500).build(database);
+        database.failWith(new SQLException("canceling statement due to statement timeout", "57014"));
+
+        assertFalse(repository.findUserByUsername("john").isPresent());
+        assertEquals(1, repository.getQueryTimeouts().getTimedOut(QueryType.LOGIN_LOOKUP));
+    }
+
+    /**
+     * A shard answering the ordered listing with its rows, up to the bound limit.
+     */
+    @SafeVarargs
+    private static StatementCountingDataSourceProvider shard(List<Map<String, String>>... rows) {
+        StatementCountingDataSourceProvider shard = new StatementCountingDataSourceProvider();
+        List<Map<String, String>>           all   = Arrays.stream(rows).flatMap(List::stream).collect(Collectors.toList());
+        String ordered = "select * from (" + LIST_ALL + ") shard_page order by username";
+        shard.answer(PagingUtil.pagedQuery(ordered, new PagingUtil.Pageable(0, 1), RDBMS.POSTGRESQL).getSql(),
+                     params -> all.subList(0, Math.min((Integer) params.get(0), all.size())));
+        return shard;
+    }
+
+    /**
+     * Rows with ids {@code from} to {@code to}, inclusive.
+     */
+    static List<Map<String, String>> users(int from, int to) {
+        return IntStream.rangeClosed(from, to).mapToObj(i -> row("id", String.valueOf(i), "username", "user" + i)).collect(Collectors.toList());
+    }
+
+    static Map<String, String> row(String... columnsAndValues) {
+        Map<String, String> row = new LinkedHashMap<>();
+        for (int i = 0; i < columnsAndValues.length; i += 2) {
+            row.put(columnsAndValues[i], columnsAndValues[i + 1]);
+        }
+        return row;
+    }
+
+    static List<String> ids(List<Map<String, String>> users) {
+        return users.stream().map(u -> u.get("id")).collect(Collectors.toList());
+    }
+
+    /**
+     * Query configuration of the repository under test; only what a test sets differs from a plain listing setup.
+     */
+    private class Configuration {
+        private final Map<QueryType, Long> timeouts = new EnumMap<>(QueryType.class);
+        private       String               seekColumn;
+        private       boolean              pageWithTotalCount;
+        private       long                 pageTotalTtlSeconds;
+        private       boolean              fullTextSearch;
+        private       String               findByEmail;
+
+        Configuration seekColumn(String seekColumn) {
+            this.seekColumn = seekColumn;
+            return this;
+        }
+
+        Configuration pageWithTotalCount(long pageTotalTtlSeconds) {
+            this.pageWithTotalCount = true;
+            this.pageTotalTtlSeconds = pageTotalTtlSeconds;
+            return this;
+        }
+
+        Configuration fullTextSearch() {
+            this.fullTextSearch = true;
+            return this;
+        }
+
+        Configuration findByEmail(String findByEmail) {
+            this.findByEmail = findByEmail;
+            return this;
+        }
+
+        Configuration timeout(QueryType type, long millis) {
+            timeouts.put(type, millis);
+            return this;
+        }
+
+        UserRepository build(DataSourceProvider... shards) {
+            QueryConfigurations queryConfigurations = new QueryConfigurations(
+                    "select count(*) from users", LIST_ALL, "select id, username from users where id = ?", null,
+                    FIND_BY_USERNAME, findByEmail, SEARCH,
+                    FIND_PASSWORD_HASH, null, null, null, "SHA-256", seekColumn, 100,
+                    pageWithTotalCount, fullTextSearch, RDBMS.POSTGRESQL, false, true, true);
+            UserRepository repository = new UserRepository(
+                    new ShardRouter("test", Arrays.asList(shards), ShardRouter.Rule.PROBE, null), queryConfigurations,
+                    new UserCache(0, 0, 0, 0, 0), PasswordVerifier.forHashFunction("SHA-256"),
+                    new PasswordVerificationExecutor("test", 1, 10, 5000), new VerifiedCredentialCache(0, 0),
+                    new UserCountCache("test", 0, pageTotalTtlSeconds), new UserSearchIndex("test", "", 0), 0, 1,
+                    new UsernameFilter("test", false, 0.01, 0), new QueryTimeouts(timeouts));
+            repositories.add(repository);
+            return repository;
+        }
+    }
+}
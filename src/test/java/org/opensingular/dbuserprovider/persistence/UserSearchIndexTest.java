@@ -0,0 +1,74 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensingular.dbuserprovider.util.PagingUtil;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class UserSearchIndexTest {
+
+    private UserSearchIndex index;
+
+    @Before
+    public void setUp() throws InterruptedException {
+        index = new UserSearchIndex("test", "username,firstName,lastName", 0);
+        index.start(() -> Arrays.asList(user("3", "carol", "Carol", "Smith"),
+                                        user("1", "alice", "Alice", "Smith"),
+                                        user("2", "bob", "Bob", "Jones")).stream());
+        for (int i = 0; i < 100 && !index.isReady(); i++) {
+            Thread.sleep(50);
+        }
+        assertTrue(index.isReady());
+    }
+
+    @After
+    public void tearDown() {
+        index.close();
+    }
+
+    @Test
+    public void lookupRowWithoutIndexedColumnsKeepsMatching() {
+        Map<String, String> login = new LinkedHashMap<>();
+        login.put("id", "1");
+        login.put("username", "alice");
+        index.upsert(login);
+
+        assertEquals(Arrays.asList("1", "3"), index.search("smith", null));
+    }
+
+    @Test
+    public void upsertedRowsKeepTheirPlace() {
+        index.upsert(user("1", "alice", "Alice", "Smith-Jones"));
+        index.upsert(user("0", "aaron", "Aaron", "Smith"));
+
+        assertEquals(Arrays.asList("0", "1", "3"), index.search("smith", null));
+    }
+
+    @Test
+    public void manyUpsertsKeepMatching() throws InterruptedException {
+        for (int i = 10; i < 2010; i++) {
+            index.upsert(user(String.valueOf(i), "user" + i, "User", "Smith"));
+        }
+        index.remove("3");
+        Thread.sleep(200);
+
+        assertEquals(2001, index.count("smith"));
+        assertEquals(Arrays.asList("1", "10", "100"), index.search("smith", new PagingUtil.Pageable(0, 3)));
+    }
+
+    private static Map<String, String> user(String id, String username, String firstName, String lastName) {
+        Map<String, String> user = new LinkedHashMap<>();
+        user.put("id", id);
+        user.put("username", username);
+        user.put("firstName", firstName);
+        user.put("lastName", lastName);
+        return user;
+    }
+}
@@ -0,0 +1,47 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unknown names are rejected once the filter is built; known ones, in any case, always pass.
+ */
+public class UsernameFilterTest {
+
+    private final UsernameFilter filter = new UsernameFilter("test", true, 0.001, 0);
+
+    @After
+    public void tearDown() {
+        filter.close();
+    }
+
+    @Test
+    public void unknownNamesAreRejected() throws Exception {
+        List<Map<String, String>> users = Arrays.asList(UserRepositoryTest.row("username", "john", "email", "john@example.com"),
+                                                        UserRepositoryTest.row("username", "mary", "email", "mary@example.com"));
+        assertTrue(filter.mightExist("mallory"));
+
+        filter.start(() -> users.size(), users::stream);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!filter.isReady() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertTrue(filter.isReady());
+        assertTrue(filter.mightExist("john"));
+        assertTrue(filter.mightExist("MARY"));
+        assertTrue(filter.mightExist("john@example.com"));
+        assertFalse(filter.mightExist("mallory"));
+        assertFalse(filter.mightExist("mallory@example.com"));
+
+        filter.add(UserRepositoryTest.row("username", "mallory"));
+        assertTrue(filter.mightExist("mallory"));
+    }
+}
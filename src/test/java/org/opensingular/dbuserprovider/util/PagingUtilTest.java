@@ -0,0 +1,63 @@
+package org.opensingular.dbuserprovider.util;
+
+import org.junit.Test;
+import org.opensingular.dbuserprovider.persistence.RDBMS;
+
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Offset and limit are bound as parameters after the query ones, so every page shares one statement.
+ */
+public class PagingUtilTest {
+
+    private static final String QUERY = "select id from users where username like ? order by id";
+
+    @Test
+    public void pagesShareOneStatement() {
+        PagingUtil.PagedQuery second = PagingUtil.pagedQuery(QUERY, new PagingUtil.Pageable(10, 10), RDBMS.POSTGRESQL);
+        PagingUtil.PagedQuery third  = PagingUtil.pagedQuery(QUERY, new PagingUtil.Pageable(20, 10), RDBMS.POSTGRESQL);
+
+        assertSame(second, third);
+        assertEquals(QUERY + " limit ? offset ?", second.getSql());
+        assertFalse(second.getSql().contains("10"));
+    }
+
+    @Test
+    public void limitParametersFollowQueryParameters() throws Exception {
+        PagingUtil.Pageable   pageable   = new PagingUtil.Pageable(20, 10);
+        PagingUtil.PagedQuery pagedQuery = PagingUtil.pagedQuery(QUERY, pageable, RDBMS.POSTGRESQL);
+        Map<Integer, Object>  bound      = new TreeMap<>();
+        PreparedStatement     statement  = recording(bound);
+
+        int start = pagedQuery.bindLimitParametersAtStart(statement, pageable);
+        statement.setString(start + 1, "jo%");
+        pagedQuery.bindLimitParametersAtEnd(statement, pageable, start);
+
+        assertEquals(0, start);
+        assertEquals("{1=jo%, 2=10, 3=20}", bound.toString());
+    }
+
+    @Test
+    public void escapedQuestionMarksAreNotParameters() {
+        assertEquals(0, PagingUtil.countParameters("select 1"));
+        assertEquals(2, PagingUtil.countParameters("select * from users where attrs ?? 'email' and id = ? and name = ?"));
+    }
+
+    private static PreparedStatement recording(Map<Integer, Object> bound) {
+        return (PreparedStatement) Proxy.newProxyInstance(PagingUtilTest.class.getClassLoader(), new Class<?>[]{PreparedStatement.class},
+                                                          (proxy, method, args) -> {
+                                                              if (method.getName().startsWith("set") && args != null && args.length == 2
+                                                                  && args[0] instanceof Integer) {
+                                                                  bound.put((Integer) args[0], args[1]);
+                                                              }
+                                                              return null;
+                                                          });
+    }
+}
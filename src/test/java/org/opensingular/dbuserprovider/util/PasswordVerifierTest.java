@@ -0,0 +1,101 @@
+package org.opensingular.dbuserprovider.util;
+
+import at.favre.lib.crypto.bcrypt.BCrypt;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.binary.StringUtils;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Test;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Objects;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Each verifier must accept and reject exactly what the hash-function switch it replaced did.
+ */
+public class PasswordVerifierTest {
+
+    private static final List<String> PASSWORDS = Arrays.asList("secret", "Secret", "", "pässwörd €", "🔑 key");
+    private static final List<String> DIGESTS   = Arrays.asList("MD2", "MD5", "SHA-1", "SHA-256", "SHA3-256", "SHA-384", "SHA-512/256", "SHA-512");
+
+    @Test
+    public void digestVerifiersMatchHexDigestComparison() {
+        for (String algorithm : DIGESTS) {
+            PasswordVerifier verifier = PasswordVerifier.forHashFunction(algorithm);
+            for (String stored : PASSWORDS) {
+                String hash = Hex.encodeHexString(DigestUtils.getDigest(algorithm).digest(StringUtils.getBytesUtf8(stored)));
+                assertSameResult(algorithm, verifier, hash);
+            }
+            assertSameResult(algorithm, verifier, "");
+            assertSameResult(algorithm, verifier, "not a hex digest");
+        }
+    }
+
+    @Test
+    public void digestVerifierRejectsNonAsciiHexDigits() {
+        String hash = DigestUtils.sha256Hex("secret");
+        int    i    = hash.indexOf('0') >= 0 ? hash.indexOf('0') : hash.indexOf('1');
+        // FULLWIDTH DIGIT ZERO / ONE, which Character.digit reads as 0 / 1
+        String fullwidth = hash.substring(0, i) + (char) (hash.charAt(i) - '0' + 0xFF10) + hash.substring(i + 1);
+
+        assertTrue(PasswordVerifier.forHashFunction("SHA-256").verify("secret", hash));
+        assertFalse(PasswordVerifier.forHashFunction("SHA-256").verify("secret", fullwidth));
+    }
+
+    @Test
+    public void bcryptVerifierMatchesBCrypt() {
+        PasswordVerifier verifier = PasswordVerifier.forHashFunction("Blowfish (bcrypt)");
+        for (String stored : PASSWORDS) {
+            assertSameResult("Blowfish (bcrypt)", verifier, BCrypt.withDefaults().hashToString(4, stored.toCharArray()));
+        }
+        assertSameResult("Blowfish (bcrypt)", verifier, "");
+    }
+
+    @Test
+    public void pbkdf2VerifierMatchesSecretKeyFactory() throws Exception {
+        PasswordVerifier verifier = PasswordVerifier.forHashFunction("PBKDF2-SHA256");
+        for (String stored : PASSWORDS) {
+            assertSameResult("PBKDF2-SHA256", verifier, "pbkdf2_sha256$1000$NaCl$" + pbkdf2(stored, "NaCl", 1000));
+        }
+    }
+
+    private static void assertSameResult(String hashFunction, PasswordVerifier verifier, String hash) {
+        int accepted = 0;
+        for (String password : PASSWORDS) {
+            boolean expected = previousVerify(hashFunction, password, hash);
+            assertEquals(hashFunction + " " + password + " " + hash, expected, verifier.verify(password, hash));
+            accepted += expected ? 1 : 0;
+        }
+        assertTrue(accepted <= 1);
+    }
+
+    /**
+     * The checks UserRepository.validateCredentials ran before the verifiers existed.
+     */
+    private static boolean previousVerify(String hashFunction, String password, String hash) {
+        if (hashFunction.toLowerCase().contains("blowfish")) {
+            return !hash.isEmpty() && BCrypt.verifyer().verify(password.toCharArray(), hash).verified;
+        }
+        if (hashFunction.equals("PBKDF2-SHA256")) {
+            String[] components = hash.split("\\$");
+            try {
+                return Objects.equals(components[3], pbkdf2(password, components[2], Integer.parseInt(components[1])));
+            } catch (Exception e) {
+                return false;
+            }
+        }
+        return Objects.equals(Hex.encodeHexString(DigestUtils.getDigest(hashFunction).digest(StringUtils.getBytesUtf8(password))), hash);
+    }
+
+    private static String pbkdf2(String password, String salt, int iterations) throws Exception {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt.getBytes(), iterations, 256);
+        return Base64.getEncoder().encodeToString(SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded());
+    }
+}
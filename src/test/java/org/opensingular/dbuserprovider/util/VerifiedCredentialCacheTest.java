@@ -0,0 +1,57 @@
+package org.opensingular.dbuserprovider.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Only successful verifications are remembered, and only for the exact username, stored hash and password.
+ */
+public class VerifiedCredentialCacheTest {
+
+    @Test
+    public void successIsNotRecomputed() {
+        VerifiedCredentialCache cache = new VerifiedCredentialCache(10, 60);
+        AtomicInteger verifications = new AtomicInteger();
+
+        assertTrue(cache.verify("john", "hash", "secret", () -> verifications.incrementAndGet() > 0));
+        assertTrue(cache.verify("john", "hash", "secret", () -> verifications.incrementAndGet() > 0));
+        assertEquals(1, verifications.get());
+    }
+
+    @Test
+    public void failureIsNotCached() {
+        VerifiedCredentialCache cache = new VerifiedCredentialCache(10, 60);
+        AtomicInteger verifications = new AtomicInteger();
+
+        assertFalse(cache.verify("john", "hash", "wrong", () -> verifications.incrementAndGet() < 0));
+        assertFalse(cache.verify("john", "hash", "wrong", () -> verifications.incrementAndGet() < 0));
+        assertEquals(2, verifications.get());
+    }
+
+    @Test
+    public void changedHashOrPasswordIsVerifiedAgain() {
+        VerifiedCredentialCache cache = new VerifiedCredentialCache(10, 60);
+        AtomicInteger verifications = new AtomicInteger();
+
+        assertTrue(cache.verify("john", "hash", "secret", () -> verifications.incrementAndGet() > 0));
+        assertFalse(cache.verify("john", "new hash", "secret", () -> verifications.incrementAndGet() < 0));
+        assertFalse(cache.verify("john", "hash", "secret2", () -> verifications.incrementAndGet() < 0));
+        assertFalse(cache.verify("joh", "nhash", "secret", () -> verifications.incrementAndGet() < 0));
+        assertEquals(4, verifications.get());
+    }
+
+    @Test
+    public void disabledCacheAlwaysVerifies() {
+        VerifiedCredentialCache cache = new VerifiedCredentialCache(0, 60);
+        AtomicInteger verifications = new AtomicInteger();
+
+        cache.verify("john", "hash", "secret", () -> verifications.incrementAndGet() > 0);
+        cache.verify("john", "hash", "secret", () -> verifications.incrementAndGet() > 0);
+        assertEquals(2, verifications.get());
+    }
+}